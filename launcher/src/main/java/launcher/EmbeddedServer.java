@@ -0,0 +1,151 @@
+package launcher;
+
+import controller.ChatServlet;
+import controller.ChatWebSocket;
+import controller.DrainHandler;
+import controller.HelloServlet;
+import controller.MetricsServlet;
+import jakarta.servlet.Servlet;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.websocket.server.WsSci;
+import utils.HistoryStore;
+import utils.UserDatabase;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Runs ChatWebSocket and the servlets in an embedded Tomcat, without a WAR
+ * deployment. Endpoints and servlets are registered directly instead of being
+ * found by annotation scanning, and the persisted state is recovered before
+ * the connector accepts connections, so the server is ready as soon as it
+ * reports it. Stopping drains the sessions first and leaves a handoff snapshot
+ * for the next process (see DrainHandler), so SIGTERM is a rolling restart.
+ *
+ * Configuration (system properties):
+ *   chatapp.server.port             HTTP and WebSocket port, 0 for any free port (default 8080)
+ *   chatapp.server.threads          maximum request threads (default 200)
+ *   chatapp.server.minSpareThreads  request threads kept alive when idle (default 10)
+ *   chatapp.server.virtualThreads   run requests on virtual threads instead of the pool (default false)
+ *   chatapp.server.acceptCount      pending connections queued by the OS (default 100)
+ *   chatapp.server.maxConnections   open connections, including WebSockets (default 10000)
+ *   chatapp.server.socketBufferSize socket read and write buffer per connection (default 8192)
+ *   chatapp.server.textBufferSize   WebSocket text message buffer (default 8192)
+ *   chatapp.server.binaryBufferSize WebSocket binary message buffer (default 8192)
+ *
+ * With --exit-when-ready the server stops right after it reported being ready,
+ * which is how StartupBenchmark times it.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.2
+ */
+public class EmbeddedServer {
+    static final int PORT = Integer.getInteger("chatapp.server.port", 8080);
+    static final int THREADS = Integer.getInteger("chatapp.server.threads", 200);
+    static final int MIN_SPARE_THREADS = Integer.getInteger("chatapp.server.minSpareThreads", 10);
+    static final boolean VIRTUAL_THREADS = Boolean.getBoolean("chatapp.server.virtualThreads");
+    static final int ACCEPT_COUNT = Integer.getInteger("chatapp.server.acceptCount", 100);
+    static final int MAX_CONNECTIONS = Integer.getInteger("chatapp.server.maxConnections", 10000);
+    static final int SOCKET_BUFFER_SIZE = Integer.getInteger("chatapp.server.socketBufferSize", 8192);
+    static final int TEXT_BUFFER_SIZE = Integer.getInteger("chatapp.server.textBufferSize", 8192);
+    static final int BINARY_BUFFER_SIZE = Integer.getInteger("chatapp.server.binaryBufferSize", 8192);
+    static final String READY_MESSAGE = "[LAUNCHER] Ready on port ";
+
+    private final Tomcat tomcat = new Tomcat();
+    private Connector connector;
+
+    /**
+     * Recovers the persisted state and starts the container.
+     */
+    public void start() throws IOException, LifecycleException {
+        long start = System.nanoTime();
+        // Message log recovery and the user database load would otherwise run on the first request
+        HistoryStore.getLatestSeq();
+        UserDatabase.getAllPublicKeyIds();
+        ChatWebSocket.getSessions(); // Restores the handoff snapshot of the previous process
+        long recovered = System.nanoTime();
+
+        Path baseDir = Files.createTempDirectory("chatapp-tomcat");
+        tomcat.setBaseDir(baseDir.toString());
+        connector = createConnector();
+        tomcat.setConnector(connector);
+
+        Context context = tomcat.addContext("", null);
+        context.addParameter("org.apache.tomcat.websocket.textBufferSize", Integer.toString(TEXT_BUFFER_SIZE));
+        context.addParameter("org.apache.tomcat.websocket.binaryBufferSize", Integer.toString(BINARY_BUFFER_SIZE));
+        context.addServletContainerInitializer(new WsSci(), Set.of(ChatWebSocket.class));
+        addServlet(context, "chatServlet", new ChatServlet(), "/history");
+        addServlet(context, "metricsServlet", new MetricsServlet(), "/metrics");
+        addServlet(context, "helloServlet", new HelloServlet(), "/hello-servlet");
+
+        tomcat.start();
+        long ready = System.nanoTime();
+        System.out.println(READY_MESSAGE + getPort() + " in " + (ready - start) / 1_000_000 + " ms"
+                + " (state recovery " + (recovered - start) / 1_000_000 + " ms,"
+                + " container " + (ready - recovered) / 1_000_000 + " ms,"
+                + " JVM uptime " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms)");
+    }
+
+    /**
+     * @return the port the connector listens on, also when it was started with port 0
+     */
+    public int getPort() {
+        return connector.getLocalPort();
+    }
+
+    /**
+     * Drains the sessions, then stops the container.
+     */
+    public void stop() {
+        DrainHandler.drain();
+        try {
+            tomcat.stop();
+            tomcat.destroy();
+        } catch (LifecycleException e) {
+            System.err.println("[LAUNCHER] Failed to stop: " + e.getMessage());
+        }
+    }
+
+    private Connector createConnector() {
+        Connector connector = new Connector("HTTP/1.1");
+        connector.setPort(PORT);
+        connector.setProperty("acceptCount", Integer.toString(ACCEPT_COUNT));
+        connector.setProperty("maxConnections", Integer.toString(MAX_CONNECTIONS));
+        connector.setProperty("socket.appReadBufSize", Integer.toString(SOCKET_BUFFER_SIZE));
+        connector.setProperty("socket.appWriteBufSize", Integer.toString(SOCKET_BUFFER_SIZE));
+        if (VIRTUAL_THREADS) {
+            connector.setProperty("useVirtualThreads", "true");
+        } else {
+            StandardThreadExecutor executor = new StandardThreadExecutor();
+            executor.setName("chatapp-exec");
+            executor.setNamePrefix("chatapp-exec-");
+            executor.setMaxThreads(THREADS);
+            executor.setMinSpareThreads(MIN_SPARE_THREADS);
+            tomcat.getService().addExecutor(executor);
+            connector.getProtocolHandler().setExecutor(executor);
+        }
+        return connector;
+    }
+
+    private static void addServlet(Context context, String name, Servlet servlet, String pattern) {
+        Tomcat.addServlet(context, name, servlet);
+        context.addServletMappingDecoded(pattern, name);
+    }
+
+    public static void main(String[] args) throws Exception {
+        EmbeddedServer server = new EmbeddedServer();
+        server.start();
+        if (args.length > 0 && args[0].equals("--exit-when-ready")) {
+            server.stop();
+            System.exit(0);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "server-shutdown"));
+        server.tomcat.getServer().await();
+    }
+}
@@ -0,0 +1,121 @@
+package launcher;
+
+import jakarta.websocket.ClientEndpointConfig;
+import jakarta.websocket.ContainerProvider;
+import jakarta.websocket.DeploymentException;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.Session;
+import jakarta.websocket.WebSocketContainer;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Real WebSocket client for the benchmarks: registers a key pair, runs the
+ * challenge handshake and hands received frames to the benchmark in order.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+class BenchmarkClient extends Endpoint {
+    private static final WebSocketContainer container = ContainerProvider.getWebSocketContainer();
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final BlockingQueue<Received> inbox = new LinkedBlockingQueue<>();
+    private final String username;
+    private final KeyPair keys;
+    private Session session;
+
+    /**
+     * A frame and the time it arrived.
+     */
+    record Received(String text, long nanoTime) {
+    }
+
+    BenchmarkClient(String username) throws GeneralSecurityException {
+        this.username = username;
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        this.keys = generator.generateKeyPair();
+    }
+
+    @Override
+    public void onOpen(Session session, EndpointConfig config) {
+        session.addMessageHandler(String.class, (MessageHandler.Whole<String>) text -> inbox.add(new Received(text, System.nanoTime())));
+    }
+
+    void connect(int port) throws IOException, DeploymentException {
+        session = container.connectToServer(this, ClientEndpointConfig.Builder.create().build(), URI.create("ws://127.0.0.1:" + port + "/chat"));
+    }
+
+    void register() throws IOException, InterruptedException {
+        RSAPublicKey publicKey = (RSAPublicKey) keys.getPublic();
+        send("register:" + username + ":" + publicKey.getModulus().toString(16) + ":" + publicKey.getPublicExponent().toString(16));
+        await("register-success");
+    }
+
+    void authenticate() throws IOException, InterruptedException {
+        send("auth-request");
+        String challenge = await("challenge:").text().substring("challenge:".length());
+        send("auth-response:" + sign(challenge) + ":" + username);
+        await("auth-success");
+    }
+
+    void send(String text) throws IOException {
+        session.getBasicRemote().sendText(text);
+    }
+
+    /**
+     * Waits for the next frame starting with the prefix, skipping all others.
+     */
+    Received await(String prefix) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (true) {
+            Received received = inbox.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (received == null) {
+                throw new IllegalStateException(username + " timed out waiting for " + prefix);
+            }
+            if (received.text().startsWith(prefix)) {
+                return received;
+            }
+        }
+    }
+
+    void clearInbox() {
+        inbox.clear();
+    }
+
+    void close() throws IOException {
+        session.close();
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    // Signs a challenge the way the client does: SHA-256 of the challenge bytes, raw RSA
+    private String sign(String challenge) {
+        byte[] bytes = new byte[challenge.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(challenge.charAt(2 * i), 16) << 4) + Character.digit(challenge.charAt(2 * i + 1), 16));
+        }
+        try {
+            BigInteger hash = new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(bytes));
+            RSAPrivateKey key = (RSAPrivateKey) keys.getPrivate();
+            return hash.modPow(key.getPrivateExponent(), key.getModulus()).toString(16);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package launcher;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * End-to-end latency over loopback: starts the embedded server in this JVM,
+ * connects real WebSocket clients and measures
+ *   handshake  auth-request to auth-success on a fresh connection
+ *   ping       ping to pong round trip
+ *   direct     direct message send to arrival at the recipient
+ * Each is run one at a time, so the numbers are latencies without queueing.
+ * The server's console logging is suppressed while measuring unless
+ * chatapp.benchmark.verbose is set.
+ *
+ * Usage: LoopbackBenchmark [iterations]
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class LoopbackBenchmark {
+    private static final int HANDSHAKES = 50;
+    private static final PrintStream report = System.out;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        System.setProperty("chatapp.server.port", System.getProperty("chatapp.server.port", "0"));
+        EmbeddedServer server = new EmbeddedServer();
+        server.start();
+        if (!Boolean.getBoolean("chatapp.benchmark.verbose")) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        try {
+            int port = server.getPort();
+            BenchmarkClient alice = new BenchmarkClient("bench-alice");
+            BenchmarkClient bob = new BenchmarkClient("bench-bob");
+            for (BenchmarkClient client : new BenchmarkClient[]{alice, bob}) {
+                client.connect(port);
+                client.register();
+                client.authenticate();
+            }
+
+            report.printf("%-10s %8s %10s %10s %10s %10s%n", "latency", "samples", "p50 us", "p90 us", "p99 us", "max us");
+            print("handshake", handshakes(port, alice));
+            ping(alice, iterations / 10); // Warm-up
+            print("ping", ping(alice, iterations));
+            direct(alice, bob, iterations / 10);
+            print("direct", direct(alice, bob, iterations));
+
+            alice.close();
+            bob.close();
+        } finally {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    private static long[] handshakes(int port, BenchmarkClient user) throws Exception {
+        long[] samples = new long[HANDSHAKES];
+        for (int i = 0; i < samples.length; i++) {
+            // Same key and name, new connection
+            user.close();
+            user.connect(port);
+            long start = System.nanoTime();
+            user.authenticate();
+            samples[i] = System.nanoTime() - start;
+        }
+        return samples;
+    }
+
+    private static long[] ping(BenchmarkClient client, int iterations) throws Exception {
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            client.send("ping");
+            samples[i] = client.await("pong").nanoTime() - start;
+        }
+        return samples;
+    }
+
+    private static long[] direct(BenchmarkClient sender, BenchmarkClient recipient, int iterations) throws Exception {
+        long[] samples = new long[iterations];
+        String frame = "{\"sender\":\"" + sender.getUsername() + "\",\"recipient\":\"" + recipient.getUsername()
+                + "\",\"content\":\"" + "ab".repeat(128) + "\"}";
+        for (int i = 0; i < iterations; i++) {
+            sender.clearInbox(); // Delivery confirmations are not measured
+            long start = System.nanoTime();
+            sender.send(frame);
+            samples[i] = recipient.await("{").nanoTime() - start;
+        }
+        return samples;
+    }
+
+    private static void print(String name, long[] samples) {
+        Arrays.sort(samples);
+        report.printf("%-10s %8d %10.1f %10.1f %10.1f %10.1f%n", name, samples.length,
+                percentile(samples, 0.50), percentile(samples, 0.90), percentile(samples, 0.99),
+                samples[samples.length - 1] / 1000.0);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)] / 1000.0;
+    }
+}
@@ -0,0 +1,56 @@
+package launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time from process start to a ready server: launches EmbeddedServer with
+ * --exit-when-ready in fresh JVMs on the classpath of this one and times each
+ * until it reports being ready. The working directory, and with it the data
+ * the server recovers at startup, is the one of this process.
+ *
+ * Usage: StartupBenchmark [runs]
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = List.of(java, "-cp", System.getProperty("java.class.path"),
+                "-Dchatapp.server.port=0", EmbeddedServer.class.getName(), "--exit-when-ready");
+
+        long[] samples = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String ready = null;
+            List<String> output = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (ready == null && line.startsWith(EmbeddedServer.READY_MESSAGE)) {
+                        samples[i] = System.nanoTime() - start;
+                        ready = line;
+                    }
+                    output.add(line);
+                }
+            }
+            process.waitFor();
+            if (ready == null) {
+                output.forEach(System.err::println);
+                throw new IllegalStateException("Server did not become ready in run " + (i + 1));
+            }
+            System.out.printf("run %d: %d ms to ready, %s%n", i + 1, samples[i] / 1_000_000, ready.substring(ready.indexOf(" in ") + 4));
+        }
+        Arrays.sort(samples);
+        System.out.printf("startup over %d runs: min %d ms, median %d ms, max %d ms%n", runs,
+                samples[0] / 1_000_000, samples[runs / 2] / 1_000_000, samples[runs - 1] / 1_000_000);
+    }
+}
@@ -3,83 +3,224 @@ package controller;
 /*
  * This class handles user authentication for WebSocket connections.
  * Users are identified by their public key, not username.
+ * Authentication state lives in the SessionState attached to each session;
+ * challenges are single-use and expire after CHALLENGE_TTL_MILLIS.
+ * After a successful RSA check the client gets a session ticket that lets a
+ * later connection resume with one HMAC check instead of a new challenge,
+ * and a separate read-only token for the history endpoint.
  * @author Max Staneker, Mia Schienagel
- * @version 0.2.0
+ * @version 0.3.0
  */
 
 import jakarta.websocket.Session;
 import crypto.CryptoUtils;
+import crypto.SessionTicketManager;
+import monitoring.AuthenticationEvent;
+import monitoring.Trace;
+import utils.SessionState;
 import utils.UserDatabase;
 import model.ServerUser;
 import java.math.BigInteger;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class AuthenticationHandler {
+    static final long CHALLENGE_TTL_MILLIS = 30_000;
+    private static final long SWEEP_INTERVAL_SECONDS = 10;
+
     private final CryptoUtils cryptoUtils = new CryptoUtils();
-    private final Map<Session, String> challenges;
-    private final Map<Session, String> authenticatedUsers; // Session -> publicKeyId
-    private final Map<Session, String> usernames; // Session -> username (for display)
+    private final SessionTicketManager ticketManager = new SessionTicketManager();
+    // Only sessions with an outstanding challenge, so a sweep never walks idle sessions
+    private final Set<SessionState> pendingChallenges = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService sweeper;
 
     public AuthenticationHandler() {
-        this.challenges = new ConcurrentHashMap<>();
-        this.authenticatedUsers = new ConcurrentHashMap<>();
-        this.usernames = new ConcurrentHashMap<>();
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "auth-challenge-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleWithFixedDelay(this::sweepExpiredChallenges,
+                SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
-    public void initializeSession(Session session) {
+    public SessionState initializeSession(Session session) {
         // Session starts unauthenticated
+        return SessionState.attach(session);
     }
 
-    public String generateChallenge(Session session) {
+    public String generateChallenge(SessionState state) {
         String challenge = cryptoUtils.generateChallenge();
-        challenges.put(session, challenge);
+        // A new request replaces any earlier challenge of the same session
+        state.issueChallenge(challenge, System.currentTimeMillis() + CHALLENGE_TTL_MILLIS);
+        pendingChallenges.add(state);
         return challenge;
     }
 
-    public boolean verifySignature(Session session, String signatureHex, String username) {
-        String challenge = challenges.get(session);
+    public boolean verifySignature(SessionState state, String signatureHex, String username) {
+        String challenge = state.consumeChallenge(System.currentTimeMillis());
+        pendingChallenges.remove(state);
         if (challenge == null) return false;
 
+        AuthenticationEvent event = new AuthenticationEvent();
+        event.begin();
+        event.traceId = Trace.current();
+        event.username = username;
+        long stageStart = System.nanoTime();
         // Get user by username (for backward compatibility)
         ServerUser user = UserDatabase.getUserByUsername(username);
+        event.lookupTime = System.nanoTime() - stageStart;
         if (user == null) {
             System.out.println("[SERVER] User not found in database: " + username);
+            commit(event);
             return false;
         }
-        
+
         BigInteger n = user.getPublicKeyN();
         BigInteger e = user.getPublicKeyE();
-        BigInteger signature = new BigInteger(signatureHex, 16);
+        BigInteger signature;
+        try {
+            signature = new BigInteger(signatureHex, 16);
+        } catch (NumberFormatException ex) {
+            System.out.println("[SERVER] Malformed signature from user: " + username);
+            commit(event);
+            return false;
+        }
 
+        stageStart = System.nanoTime();
         boolean valid = cryptoUtils.verifySignature(challenge, signature, n, e);
-        
+        event.verifyTime = System.nanoTime() - stageStart;
+        event.valid = valid;
+        commit(event);
+
         if (valid) {
-            authenticatedUsers.put(session, user.getPublicKeyId());
-            usernames.put(session, user.getUsername());
+            state.authenticate(user.getPublicKeyId(), user.getUsername());
+            UserDatabase.markSeen(user.getPublicKeyId());
             System.out.println("[SERVER] Authentication successful for user: " + username + " (ID: " + user.getPublicKeyId() + ")");
         } else {
             System.out.println("[SERVER] Authentication failed for user: " + username);
         }
-        
+
         return valid;
     }
 
-    public boolean isAuthenticated(Session session) {
-        return authenticatedUsers.containsKey(session);
+    private static void commit(AuthenticationEvent event) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /**
+     * Issues a resumption ticket for an authenticated session.
+     * @return the ticket, or null if the session is not authenticated
+     */
+    public String issueTicket(SessionState state) {
+        if (!state.isAuthenticated()) return null;
+        return ticketManager.issue(state.getPublicKeyId(), state.getUsername());
+    }
+
+    /**
+     * Restores the identity stored in a resumption ticket. A ticket can be used
+     * once; the caller should hand out a fresh one via {@link #issueTicket}.
+     * @return true if the session is now authenticated
+     */
+    public boolean resumeSession(SessionState state, String token) {
+        SessionTicketManager.Ticket ticket = ticketManager.verify(token);
+        if (ticket == null) {
+            System.out.println("[SERVER] Invalid or expired session ticket");
+            return false;
+        }
+        // The key may have been re-registered under a different name since the ticket was issued
+        ServerUser user = UserDatabase.getUserByUsername(ticket.getUsername());
+        if (user == null || !user.getPublicKeyId().equals(ticket.getPublicKeyId())) {
+            System.out.println("[SERVER] Session ticket does not match a registered user: " + ticket.getUsername());
+            return false;
+        }
+        if (!ticketManager.revoke(ticket)) {
+            System.out.println("[SERVER] Session ticket was already used by: " + ticket.getUsername());
+            return false;
+        }
+        state.authenticate(user.getPublicKeyId(), user.getUsername());
+        UserDatabase.markSeen(user.getPublicKeyId());
+        System.out.println("[SERVER] Session resumed for user: " + user.getUsername() + " (ID: " + user.getPublicKeyId() + ")");
+        return true;
+    }
+
+    /**
+     * Issues a read-only token for the history endpoint. Unlike a session
+     * ticket it can be used any number of times, so it cannot resume a session.
+     * @return the token, or null if the session is not authenticated
+     */
+    public String issueHistoryToken(SessionState state) {
+        if (!state.isAuthenticated()) return null;
+        return ticketManager.issueHistoryToken(state.getPublicKeyId(), state.getUsername());
+    }
+
+    /**
+     * Checks a history token presented as a bearer token outside the WebSocket.
+     * @return the token's username, or null if the token is invalid
+     */
+    public String verifyHistoryToken(String token) {
+        SessionTicketManager.Ticket ticket = ticketManager.verifyHistoryToken(token);
+        if (ticket == null) {
+            return null;
+        }
+        ServerUser user = UserDatabase.getUserByUsername(ticket.getUsername());
+        if (user == null || !user.getPublicKeyId().equals(ticket.getPublicKeyId())) {
+            return null;
+        }
+        return user.getUsername();
+    }
+
+    /**
+     * Revokes every ticket issued to the session's user so far.
+     */
+    public void revokeTickets(SessionState state) {
+        if (state.isAuthenticated()) {
+            ticketManager.revokeAll(state.getPublicKeyId());
+        }
+    }
+
+    /**
+     * @return the ticket keys and revocations, for handing them to the next server process
+     */
+    public String exportTicketState() {
+        return ticketManager.exportState();
     }
-    
-    public String getAuthenticatedUserId(Session session) {
-        return authenticatedUsers.get(session);
+
+    /**
+     * Takes over the ticket keys and revocations of the previous server process.
+     */
+    public void restoreTicketState(String state) {
+        ticketManager.restoreState(state);
     }
-    
-    public String getAuthenticatedUsername(Session session) {
-        return usernames.get(session);
+
+    public boolean isAuthenticated(SessionState state) {
+        return state.isAuthenticated();
+    }
+
+    public String getAuthenticatedUserId(SessionState state) {
+        return state.getPublicKeyId();
+    }
+
+    public String getAuthenticatedUsername(SessionState state) {
+        return state.getUsername();
+    }
+
+    public void cleanup(SessionState state) {
+        pendingChallenges.remove(state);
+        state.clear();
     }
 
-    public void cleanup(Session session) {
-        challenges.remove(session);
-        authenticatedUsers.remove(session);
-        usernames.remove(session);
+    /**
+     * Drops challenges that were never answered within their TTL.
+     */
+    void sweepExpiredChallenges() {
+        long now = System.currentTimeMillis();
+        pendingChallenges.removeIf(state -> state.expireChallenge(now));
     }
 }
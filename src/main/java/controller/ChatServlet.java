@@ -1,63 +1,140 @@
-/*
-package com.maxstaneker.chatapp.chatappbackend;
+package controller;
 
-import jakarta.servlet.ServletException;
-import model.Message;
-import model.User;
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import utils.HistoryStore;
+
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Objects;
 
 /**
- * ChatServlet handles chat messages sent by users.
- * It allows users to send messages and retrieve the chat history.
+ * History query endpoint over the persisted message log.
+ *
+ * GET /history?peer=&lt;user&gt;&amp;from=&lt;millis&gt;&amp;until=&lt;millis&gt;&amp;limit=&lt;n&gt;&amp;cursor=&lt;cursor&gt;
+ * with "Authorization: Bearer &lt;history token&gt;" returns the caller's
+ * messages in seq order as {"messages":[...],"nextCursor":"..."}. Without peer
+ * all conversations of the caller are searched; peer=* selects the broadcast
+ * channel. nextCursor is null on the last page; passing it back returns the
+ * next page of the same query. Messages are streamed to the response as they
+ * are read, so memory use does not depend on the page size.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.2
  */
-/*
-import jakarta.servlet.annotation.WebServlet;
-import jakarta.servlet.http.HttpServlet;
+@WebServlet(name = "chatServlet", value = "/history")
+public class ChatServlet extends HttpServlet {
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAX_LIMIT = 1000;
+    private static final String CURSOR_VERSION = "1";
 
-import java.util.ArrayList;
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String username = authenticate(request);
+        if (username == null) {
+            sendError(response, HttpServletResponse.SC_UNAUTHORIZED, "unauthorized");
+            return;
+        }
 
-@WebServlet(name = "chatServlet", value = "/chat")
-public class ChatServlet extends HttpServlet {
+        String peer = request.getParameter("peer");
+        long from;
+        long until;
+        int limit;
+        long afterSeq;
+        try {
+            from = parseLong(request.getParameter("from"), 0);
+            until = parseLong(request.getParameter("until"), Long.MAX_VALUE);
+            limit = (int) Math.min(parseLong(request.getParameter("limit"), DEFAULT_LIMIT), MAX_LIMIT);
+            afterSeq = decodeCursor(request.getParameter("cursor"), fingerprint(peer, from, until));
+        } catch (IllegalArgumentException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (limit <= 0 || from > until) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "Invalid range");
+            return;
+        }
 
-    private static final List<Message> messages = new ArrayList<>(); // Static list to hold chat messages
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        out.write("{\"messages\":[");
+        // One record past the page tells whether there is a next page
+        int[] written = {0};
+        long[] lastSeq = {afterSeq};
+        boolean[] more = {false};
+        HistoryStore.query(username, peer, afterSeq, from, until, entry -> {
+            if (written[0] == limit) {
+                more[0] = true;
+                return false;
+            }
+            if (written[0] > 0) {
+                out.write(',');
+            }
+            out.write(entry.getJson());
+            written[0]++;
+            lastSeq[0] = entry.getSeq();
+            return true;
+        });
+        out.write("],\"nextCursor\":");
+        out.write(more[0] ? "\"" + encodeCursor(lastSeq[0], fingerprint(peer, from, until)) + "\"" : "null");
+        out.write('}');
+        System.out.println("[HISTORY] Served " + written[0] + " messages to " + username + (peer != null ? " for " + peer : ""));
+    }
 
-    @Override
-    protected void doPost(HttpServletRequest request, HttpServletResponse response) // Handles incoming chat messages
-            throws ServletException, IOException {
-        String sender = request.getParameter("sender");
-        String content = request.getParameter("content");
-
-        if (sender != null && content != null && !sender.trim().isEmpty() && !content.trim().isEmpty()) {
-            Message message = new Message(sender, content, System.currentTimeMillis());
-            messages.add(message);
-            System.out.println("Message received: " + message.getContent() + " from " + message.getSender());
-            response.setStatus(HttpServletResponse.SC_OK);
-        } else {
-            System.out.println("No sender or content received");
-            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    // The history token issued over the WebSocket; session tickets are not accepted here
+    private static String authenticate(HttpServletRequest request) {
+        String header = request.getHeader("Authorization");
+        if (header == null || !header.startsWith("Bearer ")) {
+            return null;
         }
+        return ChatWebSocket.getAuthHandler().verifyHistoryToken(header.substring("Bearer ".length()).trim());
     }
 
-    @Override
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) // Fetches chat messages
-            throws ServletException, IOException {
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + value);
+        }
+    }
 
-        response.setContentType("text/html");
-        PrintWriter out = response.getWriter();
+    // Ties a cursor to the query it was issued for
+    private static String fingerprint(String peer, long from, long until) {
+        return Integer.toHexString(Objects.hash(peer, from, until));
+    }
 
-        System.out.println("Fetching chat messages...");
+    private static String encodeCursor(long afterSeq, String fingerprint) {
+        String cursor = CURSOR_VERSION + "|" + afterSeq + "|" + fingerprint;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
 
-        out.println("<html><body>");
-        out.println("<h2>Chat Messages</h2>");
-        for (Message m : messages) {
-            System.out.println(m);
-            out.printf("<p><strong>%s:</strong> %s</p>", m.getSender(), m.getContent());
+    private static long decodeCursor(String cursor, String fingerprint) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|");
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
         }
-        out.println("</body></html>");
+        if (parts.length != 3 || !CURSOR_VERSION.equals(parts[0]) || !fingerprint.equals(parts[2])) {
+            throw new IllegalArgumentException("Cursor does not belong to this query");
+        }
+        return parseLong(parts[1], 0);
+    }
+
+    private static void sendError(HttpServletResponse response, int status, String error) throws IOException {
+        response.setStatus(status);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().write("{\"error\":\"" + error.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}");
     }
 }
-*/
\ No newline at end of file
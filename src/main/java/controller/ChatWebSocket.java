@@ -7,28 +7,46 @@ import jakarta.json.bind.Jsonb;
 import jakarta.json.bind.JsonbBuilder;
 
 import java.io.IOException;
-
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.zip.DataFormatException;
 
 import crypto.CryptoUtils;
+import monitoring.MessageEvent;
+import monitoring.Trace;
 import utils.UserDatabase;
 import model.Message;
 import controller.AuthenticationHandler;
 import model.ServerUser;
+import utils.AttachmentHandler;
+import utils.BroadcastEngine;
+import utils.HandoffStore;
+import utils.FrameCompressor;
+import utils.HistoryStore;
 import utils.MessageHandler;
+import utils.PresenceRegistry;
+import utils.SessionState;
 
 /**
  * WebSocket endpoint for broadcasting chat messages between clients.
  *
  * The endpoint sends and receives JSON encoded {@link Message} objects using
- * Yasson for serialization.
+ * Yasson for serialization. The container creates one endpoint instance per
+ * connection, so the session's {@link SessionState} is kept in a field.
+ * Any request may start with a correlation id ("#id request", or a requestId
+ * property in JSON); every reply to it is then prefixed with "#id ".
+ * Every frame is handled under a {@link Trace} and timed by a {@link MessageEvent}.
  * @author Max Staneker, Mia Schienagel
- * @version 0.1.1
+ * @version 0.2.0
  */
 @ServerEndpoint("/chat")
 public class ChatWebSocket {
@@ -37,6 +55,20 @@ public class ChatWebSocket {
     private static final Jsonb jsonb = JsonbBuilder.create();
     private static final AuthenticationHandler authHandler = new AuthenticationHandler();
 
+    static {
+        // Tickets issued before a restart stay valid, so reconnecting clients can skip the RSA challenge
+        String tickets = HandoffStore.restore();
+        if (tickets != null) {
+            authHandler.restoreTicketState(tickets);
+        }
+    }
+
+    private static final int MAX_REQUEST_ID_LENGTH = 64;
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+    private static final int MAX_SEARCH_LIMIT = 100;
+
+    private SessionState state;
+
     /**
      * Adds a newly opened session to the active session set.
      *
@@ -46,11 +78,19 @@ public class ChatWebSocket {
     public void onOpen(Session session) {
         sessions.add(session);
         session.setMaxIdleTimeout(0); // 0 = keine Idle-Timeouts
-        authHandler.initializeSession(session); // Initialize authentication for the session
+        session.setMaxBinaryMessageBufferSize(AttachmentHandler.PART_BUFFER_BYTES); // Larger binary messages arrive in parts
+        state = authHandler.initializeSession(session); // Initialize authentication for the session
+        BroadcastEngine.register(state);
         System.out.println("[SERVER] Client connected: " + session.getId());
-        // Broadcast updated online users list
-        MessageHandler.broadcastOnlineUsers(sessions);
         System.out.println("[SERVER] Active sessions: " + sessions.size());
+        if (DrainHandler.isDraining()) {
+            // Shutting down; the client should come back to the next process
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "reconnect:" + DrainHandler.reconnectDelay()));
+            } catch (IOException e) {
+                System.err.println("[SERVER] Failed to close session during drain: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -63,22 +103,45 @@ public class ChatWebSocket {
      */
     @OnMessage
     public void onMessage(String messageJson, Session session) {
+        MessageEvent event = new MessageEvent();
+        event.begin();
+        event.traceId = Trace.begin();
         System.out.println("[SERVER] Raw JSON: " + messageJson);
+        // Optional correlation id: "#id request", echoed as "#id reply"
+        String requestId = parseRequestId(messageJson);
+        if (requestId != null) {
+            messageJson = messageJson.substring(requestId.length() + 2);
+        }
+        state.beginRequest(requestId);
         try {
+            if (!state.tryAcquireFrame()) {
+                System.out.println("[SERVER] Rate limit exceeded by session: " + session.getId());
+                state.replyControl("rate-limited");
+                return;
+            }
+            if (messageJson.equals("ping")) {
+                // Application-level liveness and latency probe, answered in the control lane
+                state.replyControl("pong");
+                return;
+            }
+            if (messageJson.startsWith("compression:")) {
+                negotiateCompression(session, messageJson.substring("compression:".length()));
+                return;
+            }
             if (messageJson.equals("auth-request")) {
-                String challenge = authHandler.generateChallenge(session);
+                String challenge = authHandler.generateChallenge(state);
                 System.out.println("[SERVER] Challenge for session " + session.getId() + ": " + challenge);
-                session.getBasicRemote().sendText("challenge:" + challenge);
+                state.replyControl("challenge:" + challenge);
                 return;
             }
             
             if (messageJson.startsWith("check-username:")) {
                 String username = messageJson.substring("check-username:".length());
-                if (UserDatabase.userExists(username)) {
-                    session.getBasicRemote().sendText("username-exists");
+                if (UserDatabase.usernameExists(username)) {
+                    state.replyControl("username-exists");
                     System.out.println("[SERVER] Username check - exists: " + username);
                 } else {
-                    session.getBasicRemote().sendText("username-available");
+                    state.replyControl("username-available");
                     System.out.println("[SERVER] Username check - available: " + username);
                 }
                 return;
@@ -87,69 +150,207 @@ public class ChatWebSocket {
             if (messageJson.startsWith("register:")) {
                 // Format: register:username:publicKeyN:publicKeyE
                 String[] parts = messageJson.split(":");
-                if (parts.length == 4) {
+                if (parts.length == 4 && isValidUsername(parts[1])) {
                     String username = parts[1];
-                    BigInteger publicKeyN = new BigInteger(parts[2], 16);
-                    BigInteger publicKeyE = new BigInteger(parts[3], 16);
-                    
-                    if (UserDatabase.userExists(username)) {
-                        session.getBasicRemote().sendText("register-failure:User already exists");
+                    BigInteger publicKeyN;
+                    BigInteger publicKeyE;
+                    try {
+                        publicKeyN = new BigInteger(parts[2], 16);
+                        publicKeyE = new BigInteger(parts[3], 16);
+                    } catch (NumberFormatException e) {
+                        state.replyControl("register-failure:Invalid format");
+                        return;
+                    }
+
+                    if (UserDatabase.usernameExists(username)) {
+                        state.replyControl("register-failure:User already exists");
                         System.out.println("[SERVER] Registration failed - user already exists: " + username);
                     } else {
                         UserDatabase.registerUser(username, publicKeyN, publicKeyE);
-                        session.getBasicRemote().sendText("register-success");
+                        state.replyControl("register-success");
                         System.out.println("[SERVER] User registered successfully: " + username);
                     }
                 } else {
-                    session.getBasicRemote().sendText("register-failure:Invalid format");
+                    state.replyControl("register-failure:Invalid format");
                 }
                 return;
             }
             
             if (messageJson.startsWith("auth-response:")) {
                 String[] parts = messageJson.split(":"); // Split by colon
+                if (parts.length != 3) {
+                    state.replyControl("auth-failure");
+                    return;
+                }
                 String signatureHex = parts[1];
                 String username = parts[2];
 
-                boolean valid = authHandler.verifySignature(session, signatureHex, username);
+                long authStart = System.nanoTime();
+                boolean valid = authHandler.verifySignature(state, signatureHex, username);
+                event.authTime = System.nanoTime() - authStart;
                 if (valid) {
                     System.out.println("[SERVER] Authentication successful for user: " + username);
-                    
-                    session.getBasicRemote().sendText("auth-success");
-                    
-                    // Register user session immediately after successful authentication
-                    MessageHandler.registerUserSession(username, session);
-                    
-                    // Send current online users list directly to the newly authenticated user 
-                    // (now includes the new user since they're registered)
-                    try {
-                        Thread.sleep(500); // Short delay to ensure session is fully registered
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        System.err.println("[SERVER] Interrupted during sleep: " + e.getMessage());
-                    }
-                    MessageHandler.sendOnlineUsersToSession(session);
-                    
-                    // Then broadcast updated online users list to all other clients
-                    MessageHandler.broadcastOnlineUsers(sessions);
+                    completeAuthentication(session);
                 } else {
                     System.out.println("[SERVER] Authentication failed for user: " + username);
-                    session.getBasicRemote().sendText("auth-failure");
+                    state.replyControl("auth-failure");
+                }
+                return;
+            }
+
+            if (messageJson.startsWith("resume:")) {
+                // Format: resume:ticket - skips the RSA challenge on reconnect
+                String ticket = messageJson.substring("resume:".length());
+                long authStart = System.nanoTime();
+                boolean resumed = authHandler.resumeSession(state, ticket);
+                event.authTime = System.nanoTime() - authStart;
+                if (resumed) {
+                    completeAuthentication(session);
+                } else {
+                    // Client falls back to auth-request
+                    state.replyControl("resume-failure");
                 }
                 return;
             }
             /*if (messageJson.startsWith("new-user:")) { // currently not Implemented/Used
                 System.out.println("[SERVER] New user registration request: " + messageJson); 
             }*/ // Not relevant, implementation has changed
-            if (!authHandler.isAuthenticated(session)) {
+            long authStart = System.nanoTime();
+            boolean authenticated = authHandler.isAuthenticated(state);
+            event.authTime = System.nanoTime() - authStart;
+            if (!authenticated) {
                 System.out.println("[SERVER] Unauthorized access attempt from session: " + session.getId());
-                session.getBasicRemote().sendText("unauthorized");
+                state.replyControl("unauthorized");
+                return;
+            }
+            if (messageJson.equals("revoke-tickets")) {
+                // Invalidates all resumption tickets of this user, e.g. on logout
+                authHandler.revokeTickets(state);
+                state.replyControl("tickets-revoked");
+                System.out.println("[SERVER] Session tickets revoked for user: " + state.getUsername());
+                return;
+            }
+
+            if (messageJson.startsWith("search-users:")) {
+                // Format: search-users:prefix[:limit[:cursor]]
+                String[] parts = messageJson.split(":", 4);
+                try {
+                    int limit = parts.length > 2 && !parts[2].isEmpty()
+                            ? Math.min(Integer.parseInt(parts[2]), MAX_SEARCH_LIMIT) : DEFAULT_SEARCH_LIMIT;
+                    String after = parts.length > 3 && !parts[3].isEmpty() ? decodeCursor(parts[3]) : null;
+                    if (limit <= 0) {
+                        throw new IllegalArgumentException("Invalid limit");
+                    }
+                    // One name past the page tells whether there is a next page
+                    state.reply("search-results:" + usersPage(UserDatabase.searchUsernames(parts[1], after, limit + 1), limit));
+                } catch (IllegalArgumentException e) {
+                    state.reply("search-failure:Invalid format");
+                }
+                return;
+            }
+
+            if (messageJson.startsWith("watch:")) {
+                // Format: watch:user1,user2,... - subscribes to their presence
+                if (!PresenceRegistry.watch(state, parseUserList(messageJson.substring("watch:".length())))) {
+                    state.reply("watch-failure:Too many users");
+                }
+                return;
+            }
+
+            if (messageJson.startsWith("unwatch:")) {
+                PresenceRegistry.unwatch(state, parseUserList(messageJson.substring("unwatch:".length())));
+                return;
+            }
+
+            if (messageJson.equals("list-online") || messageJson.startsWith("list-online:")) {
+                // Format: list-online[:limit[:cursor]] - opt-in, paginated list of all online users
+                String[] parts = messageJson.split(":", 3);
+                try {
+                    int limit = parts.length > 1 && !parts[1].isEmpty()
+                            ? Math.min(Integer.parseInt(parts[1]), MAX_SEARCH_LIMIT) : DEFAULT_SEARCH_LIMIT;
+                    if (limit <= 0) {
+                        throw new IllegalArgumentException("Invalid limit");
+                    }
+                    String after = parts.length > 2 && !parts[2].isEmpty() ? decodeCursor(parts[2]) : null;
+                    state.reply("online-users-page:" + usersPage(PresenceRegistry.listOnline(after, limit + 1), limit));
+                } catch (IllegalArgumentException e) {
+                    state.reply("list-online-failure:Invalid format");
+                }
+                return;
+            }
+
+            if (messageJson.startsWith("ack-mode:")) {
+                // ack-mode:cumulative replaces per-message confirmations with coalesced acks:{...} frames
+                boolean cumulative = messageJson.equals("ack-mode:cumulative");
+                state.setCumulativeAcks(cumulative);
+                state.reply(cumulative ? "ack-mode:cumulative" : "ack-mode:legacy");
+                return;
+            }
+
+            if (messageJson.startsWith("read-up-to:")) {
+                // Format: read-up-to:peer:cseq - everything up to cseq in the chat with peer was read
+                String[] parts = messageJson.split(":");
+                long conversationSeq;
+                try {
+                    if (parts.length != 3) {
+                        throw new NumberFormatException("Expected 3 parts");
+                    }
+                    conversationSeq = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    state.reply("read-failure:Invalid format");
+                    return;
+                }
+                MessageHandler.handleReadReceipt(session, parts[1], conversationSeq);
+                return;
+            }
+
+            if (messageJson.startsWith("sync-since:")) {
+                // Format: sync-since:seq:n, sync-since:ts:millis or sync-since:n (sequence number)
+                String since = messageJson.substring("sync-since:".length());
+                try {
+                    if (since.startsWith("ts:")) {
+                        HistoryStore.syncSinceTimestamp(state, Long.parseLong(since.substring("ts:".length())));
+                    } else if (since.startsWith("seq:")) {
+                        HistoryStore.sync(state, Long.parseLong(since.substring("seq:".length())));
+                    } else {
+                        HistoryStore.sync(state, Long.parseLong(since));
+                    }
+                } catch (NumberFormatException e) {
+                    state.reply("sync-failure:Invalid format");
+                }
+                return;
+            }
+
+            if (messageJson.startsWith("attachment-begin:")) {
+                AttachmentHandler.begin(state, messageJson.substring("attachment-begin:".length()));
+                return;
+            }
+
+            if (messageJson.startsWith("attachment-fetch:")) {
+                // Format: attachment-fetch:id:offset
+                String[] parts = messageJson.split(":");
+                long offset;
+                try {
+                    if (parts.length != 3) {
+                        throw new NumberFormatException("Expected 3 parts");
+                    }
+                    offset = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    state.reply("attachment-failed::Invalid format");
+                    return;
+                }
+                AttachmentHandler.fetch(state, parts[1], offset);
                 return;
             }
             // ------------------------------------------------------------- //
             // Try to parse as JSON message first to check for special commands in content
             try {
+                long parseStart = System.nanoTime();
                 Message message = jsonb.fromJson(messageJson, Message.class);
+                event.parseTime = System.nanoTime() - parseStart;
+                if (requestId == null && isValidRequestId(message.getRequestId())) {
+                    state.beginRequest(message.getRequestId());
+                }
                 
                 // Handle public key requests
                 if (message.getContent() != null && message.getContent().startsWith("get-public-key:")) {
@@ -161,10 +362,10 @@ public class ChatWebSocket {
                         String response = "public-key:" + requestedUsername + ":" + 
                             requestedUser.getPublicKeyN().toString(16) + ":" + 
                             requestedUser.getPublicKeyE().toString(16);
-                        session.getBasicRemote().sendText(response);
+                        state.replyControl(response);
                         System.out.println("[SERVER] Public key sent for: " + requestedUsername);
                     } else {
-                        session.getBasicRemote().sendText("public-key-not-found:" + requestedUsername);
+                        state.replyControl("public-key-not-found:" + requestedUsername);
                         System.out.println("[SERVER] Public key not found for: " + requestedUsername);
                     }
                     return;
@@ -175,11 +376,8 @@ public class ChatWebSocket {
                     String chatPartner = message.getContent().substring("init-chat:".length());
                     System.out.println("[SERVER] Chat initialization request for: " + chatPartner + " from: " + message.getSender());
                     
-                    // Register the sender's session for direct messaging
-                    MessageHandler.registerUserSession(message.getSender(), session);
-                    
                     if (UserDatabase.userExists(chatPartner)) {
-                        session.getBasicRemote().sendText("chat-init-success:" + chatPartner);
+                        state.replyControl("chat-init-success:" + chatPartner);
                         System.out.println("[SERVER] Chat initialization successful for: " + chatPartner);
                         
                         // Automatically send public key of chat partner
@@ -188,11 +386,11 @@ public class ChatWebSocket {
                             String keyResponse = "public-key:" + chatPartner + ":" + 
                                 chatPartnerUser.getPublicKeyN().toString(16) + ":" + 
                                 chatPartnerUser.getPublicKeyE().toString(16);
-                            session.getBasicRemote().sendText(keyResponse);
+                            state.replyControl(keyResponse);
                             System.out.println("[SERVER] Auto-sent public key for chat partner: " + chatPartner);
                         }
                     } else {
-                        session.getBasicRemote().sendText("chat-init-failure:User not found");
+                        state.replyControl("chat-init-failure:User not found");
                         System.out.println("[SERVER] Chat initialization failed - user not found: " + chatPartner);
                     }
                     return;
@@ -203,15 +401,19 @@ public class ChatWebSocket {
                                  ", content=" + message.getContent() + 
                                  ", recipient=" + message.getRecipient());
                 
-                // Register user session for direct messaging
-                MessageHandler.registerUserSession(message.getSender(), session);
-                
                 // Route message based on type
-                if (message.getRecipient() != null && !message.getRecipient().isEmpty()) {
+                long routeStart = System.nanoTime();
+                if (message.getEnvelopes() != null && !message.getEnvelopes().isEmpty()) {
+                    event.command = "envelope";
+                    MessageHandler.handleEnvelopeMessage(message, session);
+                } else if (message.getRecipient() != null && !message.getRecipient().isEmpty()) {
+                    event.command = "direct";
                     MessageHandler.handleDirectMessage(message, session);
                 } else {
-                    MessageHandler.handleBroadcastMessage(message, sessions);
+                    event.command = "broadcast";
+                    MessageHandler.handleBroadcastMessage(message, session);
                 }
+                event.routeTime = System.nanoTime() - routeStart;
                 
             } catch (Exception jsonException) {
                 // If JSON parsing fails, check for direct init-chat string
@@ -220,10 +422,10 @@ public class ChatWebSocket {
                     System.out.println("[SERVER] Direct chat initialization request for: " + chatPartner);
                     
                     if (UserDatabase.userExists(chatPartner)) {
-                        session.getBasicRemote().sendText("chat-init-success:" + chatPartner);
+                        state.replyControl("chat-init-success:" + chatPartner);
                         System.out.println("[SERVER] Chat initialization successful for: " + chatPartner);
                     } else {
-                        session.getBasicRemote().sendText("chat-init-failure:User not found");
+                        state.replyControl("chat-init-failure:User not found");
                         System.out.println("[SERVER] Chat initialization failed - user not found: " + chatPartner);
                     }
                     return;
@@ -233,12 +435,102 @@ public class ChatWebSocket {
                 }
             }
             
-        } catch (IOException e) {
+        } catch (RuntimeException e) {
             System.err.println("[SERVER] Error processing message: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            state.endRequest();
+            Trace.end();
+            event.end();
+            if (event.shouldCommit()) {
+                event.sessionId = session.getId();
+                event.frameLength = messageJson.length();
+                if (event.command == null) {
+                    event.command = commandOf(messageJson);
+                }
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Receives attachment data as binary frames. Large frames are delivered in
+     * parts and written to disk as they arrive instead of being buffered.
+     * Compressed text frames are inflated and handled like text frames.
+     *
+     * @param part    the received bytes
+     * @param last    whether this part completes the binary message
+     * @param session the WebSocket session that sent the data
+     */
+    @OnMessage
+    public void onBinary(ByteBuffer part, boolean last, Session session) {
+        FrameCompressor compressor = state.getCompressor();
+        if (compressor != null && compressor.isCompressedText(part, last)) {
+            try {
+                String text = compressor.inflate(part, last);
+                if (text != null) {
+                    onMessage(text, session);
+                }
+            } catch (DataFormatException e) {
+                System.out.println("[SERVER] Invalid compressed frame from session " + session.getId() + ": " + e.getMessage());
+                state.sendControl("compression-failed:" + e.getMessage());
+            }
+            return;
+        }
+        if (!authHandler.isAuthenticated(state)) {
+            if (last) {
+                state.sendControl("unauthorized");
+            }
+            return;
+        }
+        AttachmentHandler.onBinaryPart(state, part, last);
+    }
+
+    /**
+     * Handles compression:deflate and compression:none. Connections that already
+     * negotiated permessage-deflate with the container keep using it instead.
+     * The reply goes ahead of any compressed frame in the same lane.
+     *
+     * @param session the requesting session
+     * @param mode    the requested mode
+     */
+    private void negotiateCompression(Session session, String mode) {
+        if (mode.equals("deflate")) {
+            boolean perMessageDeflate = session.getNegotiatedExtensions().stream()
+                    .anyMatch(extension -> extension.getName().equals("permessage-deflate"));
+            if (perMessageDeflate) {
+                state.setCompression(false);
+                state.reply("compression:permessage-deflate");
+            } else {
+                state.reply("compression:deflate:" + FrameCompressor.THRESHOLD);
+                state.setCompression(true);
+            }
+            System.out.println("[SERVER] Compression for session " + session.getId() + ": "
+                    + (perMessageDeflate ? "permessage-deflate" : "deflate"));
+        } else {
+            state.setCompression(false);
+            state.reply("compression:none");
         }
     }
 
+    /**
+     * Finishes a successful RSA or ticket authentication: confirms it, hands out
+     * a fresh resumption ticket and a history token and publishes the user as online.
+     *
+     * @param session the now authenticated WebSocket session
+     */
+    private void completeAuthentication(Session session) {
+        state.replyControl("auth-success");
+        state.replyControl("session-ticket:" + authHandler.issueTicket(state));
+        state.replyControl("history-token:" + authHandler.issueHistoryToken(state));
+
+        // Register user session immediately after successful authentication;
+        // this publishes the user as online to their watchers
+        MessageHandler.registerUserSession(session);
+        // Presence subscriptions and undelivered frames from before a restart
+        HandoffStore.resume(state);
+    }
+
     /**
      * Removes the session from the active session set once the connection is
      * closed.
@@ -248,20 +540,99 @@ public class ChatWebSocket {
     @OnClose
     public void onClose(Session session) {
         sessions.remove(session);
+        BroadcastEngine.unregister(state);
         MessageHandler.removeUserSession(session);
-        authHandler.cleanup(session);
-        
-        // Broadcast updated online users list
-        MessageHandler.broadcastOnlineUsers(sessions);
+        PresenceRegistry.unwatchAll(state);
+        AttachmentHandler.cleanup(state);
+        authHandler.cleanup(state);
         
         System.out.println("[SERVER] Client disconnected: " + session.getId());
     }
 
+    // {"users":[...],"nextCursor":...} of a page fetched with one name more than the limit
+    private static String usersPage(List<String> users, int limit) {
+        String nextCursor = null;
+        if (users.size() > limit) {
+            users = users.subList(0, limit);
+            nextCursor = Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(users.get(limit - 1).getBytes(StandardCharsets.UTF_8));
+        }
+        return "{\"users\":" + jsonb.toJson(users)
+                + ",\"nextCursor\":" + (nextCursor != null ? "\"" + nextCursor + "\"" : "null") + "}";
+    }
+
+    // A cursor is the last name of the previous page
+    private static String decodeCursor(String cursor) {
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> parseUserList(String list) {
+        List<String> users = new ArrayList<>();
+        for (String username : list.split(",")) {
+            if (!username.isEmpty()) {
+                users.add(username);
+            }
+        }
+        return users;
+    }
+
+    // Returns the id of a "#id request" frame, or null if the frame carries none
+    private static String parseRequestId(String frame) {
+        if (!frame.startsWith("#")) {
+            return null;
+        }
+        int space = frame.indexOf(' ');
+        if (space < 0) {
+            return null;
+        }
+        String id = frame.substring(1, space);
+        return isValidRequestId(id) ? id : null;
+    }
+
+    // Command name of a text frame for tracing, without its arguments
+    private static String commandOf(String frame) {
+        if (frame.startsWith("{")) {
+            return "json";
+        }
+        int colon = frame.indexOf(':');
+        return colon >= 0 ? frame.substring(0, colon) : frame;
+    }
+
+    private static boolean isValidRequestId(String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_REQUEST_ID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Usernames end up in conversation keys and log records, which use ':' and tabs as separators
+    private static boolean isValidUsername(String username) {
+        if (username.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            if (Character.isISOControl(username.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static Set<Session> getSessions() {
         return sessions;
     }
     public static Jsonb getJsonb() {
         return jsonb;
     }
+    // Shared with ChatServlet, so tickets issued here authenticate HTTP requests
+    static AuthenticationHandler getAuthHandler() {
+        return authHandler;
+    }
     
 }
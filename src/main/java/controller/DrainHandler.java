@@ -0,0 +1,130 @@
+package controller;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import jakarta.servlet.annotation.WebListener;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Session;
+import utils.HandoffStore;
+import utils.PresenceRegistry;
+import utils.SessionState;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drains the server before it stops, so a rolling restart does not drop every
+ * client at the same moment:
+ *   1. new sessions are closed right away with 1013 (try again later)
+ *   2. every session gets "reconnect:<delayMillis>" in the control lane; the
+ *      delays start when the sessions are closed and are spread at random
+ *      over RECONNECT_SPREAD_MILLIS from there
+ *   3. the queues get up to FLUSH_MILLIS to reach their clients
+ *   4. ticket keys, presence subscriptions and the chat messages still queued are
+ *      written to disk by the HandoffStore
+ *   5. all sessions are closed with 1012 (service restart)
+ * Presence events stop with step 1. Clients reconnect after their delay and
+ * resume with their session ticket, which the next process accepts because
+ * it restores the ticket keys; the RSA challenge is only needed by clients
+ * without a ticket. A client that still reaches the draining server, or
+ * connects before a replacement is up, gets 1013 with "reconnect:<delayMillis>"
+ * as the close reason and must wait that long before trying again, so retries
+ * stay spread out as well.
+ *
+ * Runs when the web application is stopped, or from the embedded launcher's
+ * shutdown hook.
+ *
+ * Configuration (system properties):
+ *   chatapp.drain.reconnectSpreadSeconds window the reconnect delays are spread over (default 30)
+ *   chatapp.drain.flushSeconds           longest wait for queued frames to be sent (default 5)
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+@WebListener
+public class DrainHandler implements ServletContextListener {
+    static final long RECONNECT_SPREAD_MILLIS = Long.getLong("chatapp.drain.reconnectSpreadSeconds", 30) * 1000;
+    static final long FLUSH_MILLIS = Long.getLong("chatapp.drain.flushSeconds", 5) * 1000;
+    private static final long FLUSH_POLL_MILLIS = 20;
+    // Time allowed for writing the snapshot and closing the sessions after the flush
+    private static final long CLOSE_MILLIS = 1000;
+
+    private static volatile boolean draining;
+    private static volatile long closedAt;
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        drain();
+    }
+
+    /**
+     * @return true once the server started draining; it does not accept sessions anymore
+     */
+    public static boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return a random delay within the reconnect window, which opens once the sessions are closed
+     */
+    static long reconnectDelay() {
+        long untilClosed = Math.max(0, closedAt - System.currentTimeMillis());
+        return untilClosed + ThreadLocalRandom.current().nextLong(RECONNECT_SPREAD_MILLIS + 1);
+    }
+
+    /**
+     * Drains and closes all sessions and saves the handoff snapshot. Blocks
+     * for at most FLUSH_MILLIS plus the time to write the snapshot; later
+     * calls return right away.
+     */
+    public static synchronized void drain() {
+        if (draining) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        closedAt = start + FLUSH_MILLIS + CLOSE_MILLIS;
+        draining = true;
+        PresenceRegistry.suspend();
+        List<Session> sessions = new ArrayList<>(ChatWebSocket.getSessions());
+        System.out.println("[DRAIN] Draining " + sessions.size() + " sessions");
+        for (Session session : sessions) {
+            SessionState.of(session).sendControl("reconnect:" + reconnectDelay());
+        }
+
+        // Let queued frames reach their clients; whatever is left is handed over
+        long deadline = start + FLUSH_MILLIS;
+        try {
+            while (System.currentTimeMillis() < deadline && !isFlushed(sessions)) {
+                Thread.sleep(FLUSH_POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<SessionState> states = new ArrayList<>(sessions.size());
+        for (Session session : sessions) {
+            states.add(SessionState.of(session));
+        }
+        HandoffStore.save(ChatWebSocket.getAuthHandler().exportTicketState(), states);
+
+        for (Session session : sessions) {
+            try {
+                session.close(new CloseReason(CloseReason.CloseCodes.SERVICE_RESTART, "reconnect"));
+            } catch (IOException | IllegalStateException e) {
+                // Already closed by the client
+            }
+        }
+        System.out.println("[DRAIN] Closed " + sessions.size() + " sessions in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static boolean isFlushed(List<Session> sessions) {
+        for (Session session : sessions) {
+            SessionState state = SessionState.of(session);
+            if (session.isOpen() && state.getOutbound().getQueuedSize() + state.getOutbound().getQueuedControlSize() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package controller;
+
+import jakarta.servlet.annotation.WebServlet;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import utils.FrameCompressor;
+import utils.HistoryStore;
+import utils.LogCompactor;
+import utils.UserDatabase;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Storage, retention and compression metrics in the Prometheus text format.
+ *
+ * GET /metrics
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+@WebServlet(name = "metricsServlet", value = "/metrics")
+public class MetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter out = response.getWriter();
+        metric(out, "chatapp_message_log_bytes", "gauge", "Size of the message log on disk", HistoryStore.getDiskBytes());
+        metric(out, "chatapp_history_memory_bytes", "gauge", "Estimated heap size of the history rings", HistoryStore.getMemoryBytes());
+        metric(out, "chatapp_users", "gauge", "Registered users", UserDatabase.getAllPublicKeyIds().length);
+        metric(out, "chatapp_sessions", "gauge", "Open WebSocket sessions", ChatWebSocket.getSessions().size());
+        metric(out, "chatapp_compressed_frames_total", "counter", "Frames compressed, a broadcast counting once", FrameCompressor.getFramesCompressed());
+        metric(out, "chatapp_compression_input_bytes_total", "counter", "Size of those frames before compression", FrameCompressor.getBytesBeforeCompression());
+        metric(out, "chatapp_compression_output_bytes_total", "counter", "Size of those frames after compression", FrameCompressor.getBytesAfterCompression());
+        metric(out, "chatapp_retention_segments_deleted_total", "counter", "Log segments deleted because all their messages expired", LogCompactor.getSegmentsDeleted());
+        metric(out, "chatapp_retention_segments_rewritten_total", "counter", "Log segments rewritten without their expired messages", LogCompactor.getSegmentsRewritten());
+        metric(out, "chatapp_retention_records_expired_total", "counter", "Messages removed from rewritten segments", LogCompactor.getRecordsExpired());
+        metric(out, "chatapp_retention_bytes_reclaimed_total", "counter", "Disk space freed by compaction", LogCompactor.getBytesReclaimed());
+        metric(out, "chatapp_retention_users_removed_total", "counter", "Users removed after not authenticating for too long", LogCompactor.getUsersRemoved());
+        metric(out, "chatapp_retention_last_run_timestamp_seconds", "gauge", "Start of the last compaction run", LogCompactor.getLastRunTimestamp() / 1000);
+        metric(out, "chatapp_retention_last_run_duration_seconds", "gauge", "Duration of the last compaction run", LogCompactor.getLastRunMillis() / 1000.0);
+    }
+
+    private static void metric(PrintWriter out, String name, String type, String help, Number value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+        out.println(name + " " + value);
+    }
+}
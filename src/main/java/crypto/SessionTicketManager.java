@@ -0,0 +1,303 @@
+package crypto;
+/*
+ * Issues and verifies resumption tickets for authenticated sessions.
+ * A ticket binds a public key ID and username to an expiry time and is
+ * authenticated with HMAC-SHA256, so a reconnecting client can skip the
+ * RSA challenge. Keys rotate periodically; the previous key stays valid
+ * until every ticket it signed has expired. Keys and revocations can be
+ * exported and restored, so tickets survive a restart of the server.
+ * History tokens are signed the same way but carry their own type in the
+ * signed payload: they grant read access to the history endpoint and can
+ * never resume a session, and a session ticket is not accepted there.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.3
+ */
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SessionTicketManager {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    // First payload field: the token type, which also versions the layout
+    private static final String SESSION_TICKET = "1";
+    private static final String HISTORY_TOKEN = "h1";
+    static final long TICKET_TTL_MILLIS = 60L * 60 * 1000; // 1 hour
+    static final long KEY_ROTATION_MILLIS = TICKET_TTL_MILLIS;
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Long> revokedTickets = new ConcurrentHashMap<>(); // ticketId -> expiresAt
+    private final Map<String, Long> revokedBefore = new ConcurrentHashMap<>(); // publicKeyId -> issuedAt cut-off
+    private volatile TicketKey currentKey;
+    private volatile TicketKey previousKey;
+
+    /**
+     * Identity restored from a valid ticket.
+     */
+    public static final class Ticket {
+        private final String ticketId;
+        private final String publicKeyId;
+        private final String username;
+        private final long issuedAt;
+        private final long expiresAt;
+
+        Ticket(String ticketId, String publicKeyId, String username, long issuedAt, long expiresAt) {
+            this.ticketId = ticketId;
+            this.publicKeyId = publicKeyId;
+            this.username = username;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getTicketId() {
+            return ticketId;
+        }
+
+        public String getPublicKeyId() {
+            return publicKeyId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getIssuedAt() {
+            return issuedAt;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    public SessionTicketManager() {
+        this.currentKey = newKey(1, System.currentTimeMillis());
+    }
+
+    /**
+     * Issues a ticket for an authenticated user.
+     */
+    public String issue(String publicKeyId, String username) {
+        return issue(SESSION_TICKET, publicKeyId, username);
+    }
+
+    /**
+     * Issues a read-only token for the history endpoint.
+     */
+    public String issueHistoryToken(String publicKeyId, String username) {
+        return issue(HISTORY_TOKEN, publicKeyId, username);
+    }
+
+    private String issue(String type, String publicKeyId, String username) {
+        long now = System.currentTimeMillis();
+        TicketKey key = rotateIfDue(now);
+        byte[] idBytes = new byte[16];
+        random.nextBytes(idBytes);
+        String ticketId = Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes);
+
+        String payload = type + "|" + key.id + "|" + ticketId + "|" + publicKeyId + "|"
+                + now + "|" + (now + TICKET_TTL_MILLIS) + "|" + username;
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payloadBytes) + "." + encoder.encodeToString(key.mac(payloadBytes));
+    }
+
+    /**
+     * Verifies a ticket's MAC, expiry and revocation state.
+     * @return the ticket contents, or null if the ticket is not valid
+     */
+    public Ticket verify(String token) {
+        return verify(SESSION_TICKET, token);
+    }
+
+    /**
+     * Verifies a history token like {@link #verify}; session tickets are not accepted.
+     * @return the token contents, or null if the token is not valid
+     */
+    public Ticket verifyHistoryToken(String token) {
+        return verify(HISTORY_TOKEN, token);
+    }
+
+    private Ticket verify(String type, String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+        byte[] payloadBytes;
+        byte[] macBytes;
+        try {
+            payloadBytes = Base64.getUrlDecoder().decode(token.substring(0, dot));
+            macBytes = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        String[] fields = new String(payloadBytes, StandardCharsets.UTF_8).split("\\|", 7);
+        if (fields.length != 7 || !type.equals(fields[0])) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            TicketKey key = keyFor(Integer.parseInt(fields[1]));
+            if (key == null || !MessageDigest.isEqual(key.mac(payloadBytes), macBytes)) {
+                return null;
+            }
+            Ticket ticket = new Ticket(fields[2], fields[3], fields[6],
+                    Long.parseLong(fields[4]), Long.parseLong(fields[5]));
+            if (now > ticket.getExpiresAt() || revokedTickets.containsKey(ticket.getTicketId())) {
+                return null;
+            }
+            Long cutOff = revokedBefore.get(ticket.getPublicKeyId());
+            if (cutOff != null && ticket.getIssuedAt() <= cutOff) {
+                return null;
+            }
+            return ticket;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Revokes a single ticket, e.g. once it has been used to resume a session.
+     * @return false if the ticket had already been revoked
+     */
+    public boolean revoke(Ticket ticket) {
+        return revokedTickets.putIfAbsent(ticket.getTicketId(), ticket.getExpiresAt()) == null;
+    }
+
+    /**
+     * Revokes every ticket issued to a user up to now.
+     */
+    public void revokeAll(String publicKeyId) {
+        revokedBefore.put(publicKeyId, System.currentTimeMillis());
+    }
+
+    /**
+     * Serializes the keys and revocations, one per line. The result contains
+     * the secret keys and must be stored accordingly.
+     */
+    public synchronized String exportState() {
+        StringBuilder state = new StringBuilder();
+        for (TicketKey key : new TicketKey[]{previousKey, currentKey}) {
+            if (key != null) {
+                state.append("key|").append(key.id).append('|').append(key.createdAt).append('|')
+                        .append(Base64.getEncoder().encodeToString(key.secret.getEncoded())).append('\n');
+            }
+        }
+        revokedTickets.forEach((ticketId, expiresAt) -> state.append("revoked|").append(ticketId).append('|').append(expiresAt).append('\n'));
+        revokedBefore.forEach((publicKeyId, cutOff) -> state.append("revokedBefore|").append(publicKeyId).append('|').append(cutOff).append('\n'));
+        return state.toString();
+    }
+
+    /**
+     * Takes over the keys and revocations of {@link #exportState()}, so tickets
+     * issued before a restart stay valid and used tickets stay revoked.
+     * Malformed lines are skipped.
+     */
+    public synchronized void restoreState(String state) {
+        TicketKey current = null;
+        TicketKey previous = null;
+        for (String line : state.split("\n")) {
+            String[] fields = line.split("\\|");
+            try {
+                switch (fields[0]) {
+                    case "key" -> {
+                        TicketKey key = new TicketKey(Integer.parseInt(fields[1]),
+                                new SecretKeySpec(Base64.getDecoder().decode(fields[3]), MAC_ALGORITHM), Long.parseLong(fields[2]));
+                        if (current == null || key.id > current.id) {
+                            previous = current;
+                            current = key;
+                        } else {
+                            previous = key;
+                        }
+                    }
+                    case "revoked" -> revokedTickets.put(fields[1], Long.parseLong(fields[2]));
+                    case "revokedBefore" -> revokedBefore.merge(fields[1], Long.parseLong(fields[2]), Math::max);
+                    default -> {
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.err.println("[SERVER/Crypto] Skipping malformed ticket state line");
+            }
+        }
+        if (current != null) {
+            currentKey = current;
+            previousKey = previous;
+        }
+        purgeRevocations(System.currentTimeMillis());
+        System.out.println("[SERVER/Crypto] Restored session ticket key #" + currentKey.id
+                + " and " + (revokedTickets.size() + revokedBefore.size()) + " revocations");
+    }
+
+    private TicketKey keyFor(int id) {
+        TicketKey current = currentKey;
+        if (current.id == id) {
+            return current;
+        }
+        TicketKey previous = previousKey;
+        return previous != null && previous.id == id ? previous : null;
+    }
+
+    private TicketKey rotateIfDue(long now) {
+        TicketKey current = currentKey;
+        if (now - current.createdAt < KEY_ROTATION_MILLIS) {
+            return current;
+        }
+        synchronized (this) {
+            if (currentKey == current) {
+                previousKey = current;
+                currentKey = newKey(current.id + 1, now);
+                purgeRevocations(now);
+                System.out.println("[SERVER/Crypto] Rotated session ticket key to #" + currentKey.id);
+            }
+            return currentKey;
+        }
+    }
+
+    // Entries only matter while a ticket they cover could still be valid
+    private void purgeRevocations(long now) {
+        revokedTickets.values().removeIf(expiresAt -> expiresAt < now);
+        revokedBefore.values().removeIf(cutOff -> cutOff < now - TICKET_TTL_MILLIS);
+    }
+
+    private TicketKey newKey(int id, long createdAt) {
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        return new TicketKey(id, new SecretKeySpec(secret, MAC_ALGORITHM), createdAt);
+    }
+
+    private static final class TicketKey {
+        private final int id;
+        private final SecretKeySpec secret;
+        private final long createdAt;
+        // Mac is not thread-safe; one initialized instance per thread and key
+        private final ThreadLocal<Mac> macs;
+
+        private TicketKey(int id, SecretKeySpec secret, long createdAt) {
+            this.id = id;
+            this.secret = secret;
+            this.createdAt = createdAt;
+            this.macs = ThreadLocal.withInitial(this::newMac);
+        }
+
+        private byte[] mac(byte[] data) {
+            return macs.get().doFinal(data);
+        }
+
+        private Mac newMac() {
+            try {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(secret);
+                return mac;
+            } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+                throw new RuntimeException(MAC_ALGORITHM + " not available", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package model;
+
+import jakarta.json.bind.annotation.JsonbProperty;
+
+import java.util.Map;
+
+/**
+ * Coalesced acknowledgements for one session. Delivery and read receipts are
+ * cumulative per conversation partner ("everything up to cseq N"); accepted
+ * maps the correlation ids of the session's own messages to their cseq.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class AckBatch {
+    @JsonbProperty("delivered")
+    private Map<String, Long> delivered;
+    @JsonbProperty("read")
+    private Map<String, Long> read;
+    @JsonbProperty("accepted")
+    private Map<String, Long> accepted;
+
+    // Default constructor
+    public AckBatch() {
+    }
+
+    public AckBatch(Map<String, Long> delivered, Map<String, Long> read, Map<String, Long> accepted) {
+        this.delivered = delivered;
+        this.read = read;
+        this.accepted = accepted;
+    }
+
+    public Map<String, Long> getDelivered() {
+        return delivered;
+    }
+    public void setDelivered(Map<String, Long> delivered) {
+        this.delivered = delivered;
+    }
+
+    public Map<String, Long> getRead() {
+        return read;
+    }
+    public void setRead(Map<String, Long> read) {
+        this.read = read;
+    }
+
+    public Map<String, Long> getAccepted() {
+        return accepted;
+    }
+    public void setAccepted(Map<String, Long> accepted) {
+        this.accepted = accepted;
+    }
+}
@@ -0,0 +1,52 @@
+package model;
+
+import jakarta.json.bind.annotation.JsonbProperty;
+
+/**
+ * Body of an attachment-begin command. A request with an id resumes an
+ * earlier upload; a request without one starts a new transfer.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class AttachmentRequest {
+    @JsonbProperty("id")
+    private String id;
+    @JsonbProperty("recipient")
+    private String recipient;
+    @JsonbProperty("name")
+    private String name;
+    @JsonbProperty("size")
+    private long size;
+
+    // Default constructor
+    public AttachmentRequest() {
+    }
+
+    public String getId() {
+        return id;
+    }
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+    public void setRecipient(String recipient) {
+        this.recipient = recipient;
+    }
+
+    public String getName() {
+        return name;
+    }
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+    public void setSize(long size) {
+        this.size = size;
+    }
+}
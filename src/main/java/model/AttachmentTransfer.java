@@ -0,0 +1,150 @@
+package model;
+
+import jakarta.json.bind.annotation.JsonbProperty;
+import jakarta.json.bind.annotation.JsonbTransient;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Server-side state of one attachment upload. The payload lives in a spool
+ * file on disk; only metadata and the received byte count are kept in memory.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class AttachmentTransfer {
+    @JsonbProperty("id")
+    private final String id;
+    @JsonbProperty("sender")
+    private final String sender;
+    @JsonbProperty("recipient")
+    private final String recipient;
+    @JsonbProperty("name")
+    private final String name;
+    @JsonbProperty("size")
+    private final long size;
+
+    private final long idBits;
+    private final Path spoolFile;
+    private final long createdAt;
+    private volatile long received;
+    private volatile long acked; // Last offset acknowledged to the uploader; the window starts here
+    private volatile long lastActivity;
+    private volatile boolean complete;
+    private FileChannel channel; // Open while an upload session writes to it
+    private String uploadSessionId; // Session that opened or last resumed the upload
+
+    public AttachmentTransfer(long idBits, String sender, String recipient, String name, long size, Path spoolFile) {
+        this.idBits = idBits;
+        this.id = formatId(idBits);
+        this.sender = sender;
+        this.recipient = recipient;
+        this.name = name;
+        this.size = size;
+        this.spoolFile = spoolFile;
+        this.createdAt = System.currentTimeMillis();
+        this.lastActivity = createdAt;
+    }
+
+    /**
+     * Transfer ids are sent as 16 hex digits in text frames and as a long in binary frames.
+     */
+    public static String formatId(long idBits) {
+        String hex = Long.toHexString(idBits);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @JsonbTransient
+    public long getIdBits() {
+        return idBits;
+    }
+
+    @JsonbTransient
+    public Path getSpoolFile() {
+        return spoolFile;
+    }
+
+    @JsonbTransient
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    @JsonbTransient
+    public long getReceived() {
+        return received;
+    }
+    public void setReceived(long received) {
+        this.received = received;
+        this.lastActivity = System.currentTimeMillis();
+    }
+
+    @JsonbTransient
+    public long getAcked() {
+        return acked;
+    }
+    public void setAcked(long acked) {
+        this.acked = acked;
+    }
+
+    @JsonbTransient
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    @JsonbTransient
+    public boolean isComplete() {
+        return complete;
+    }
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    @JsonbTransient
+    public FileChannel getChannel() {
+        return channel;
+    }
+    public void setChannel(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @JsonbTransient
+    public String getUploadSessionId() {
+        return uploadSessionId;
+    }
+    public void setUploadSessionId(String uploadSessionId) {
+        this.uploadSessionId = uploadSessionId;
+    }
+
+    @Override
+    public String toString() {
+        return "AttachmentTransfer{" +
+                "id='" + id + '\'' +
+                ", sender='" + sender + '\'' +
+                ", recipient='" + recipient + '\'' +
+                ", name='" + name + '\'' +
+                ", size=" + size +
+                ", received=" + received +
+                ", complete=" + complete +
+                '}';
+    }
+}
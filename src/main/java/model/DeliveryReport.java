@@ -0,0 +1,49 @@
+package model;
+
+import jakarta.json.bind.annotation.JsonbProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aggregated delivery result for a multi-recipient envelope, sent back to the
+ * sender as a single frame instead of one confirmation per recipient.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class DeliveryReport {
+    @JsonbProperty("delivered")
+    private final List<String> delivered = new ArrayList<>();
+    @JsonbProperty("offline")
+    private final List<String> offline = new ArrayList<>();
+    @JsonbProperty("unknown")
+    private final List<String> unknown = new ArrayList<>();
+    @JsonbProperty("busy")
+    private final List<String> busy = new ArrayList<>();
+
+    public List<String> getDelivered() {
+        return delivered;
+    }
+
+    public List<String> getOffline() {
+        return offline;
+    }
+
+    public List<String> getUnknown() {
+        return unknown;
+    }
+
+    public List<String> getBusy() {
+        return busy;
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryReport{" +
+                "delivered=" + delivered +
+                ", offline=" + offline +
+                ", unknown=" + unknown +
+                ", busy=" + busy +
+                '}';
+    }
+}
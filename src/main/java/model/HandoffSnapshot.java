@@ -0,0 +1,86 @@
+package model;
+
+import jakarta.json.bind.annotation.JsonbProperty;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State a draining server hands to the process that replaces it: the session
+ * ticket keys and revocations, and per user the presence subscriptions and
+ * the chat messages that were still queued when the sessions were closed.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class HandoffSnapshot {
+    @JsonbProperty("createdAt")
+    private long createdAt;
+    @JsonbProperty("tickets")
+    private String tickets;
+    @JsonbProperty("users")
+    private Map<String, UserState> users;
+
+    /**
+     * What one user's sessions left behind.
+     */
+    public static class UserState {
+        @JsonbProperty("watching")
+        private List<String> watching;
+        @JsonbProperty("pendingFrames")
+        private List<String> pendingFrames;
+
+        // Default constructor
+        public UserState() {
+        }
+
+        public UserState(List<String> watching, List<String> pendingFrames) {
+            this.watching = watching;
+            this.pendingFrames = pendingFrames;
+        }
+
+        public List<String> getWatching() {
+            return watching;
+        }
+        public void setWatching(List<String> watching) {
+            this.watching = watching;
+        }
+
+        public List<String> getPendingFrames() {
+            return pendingFrames;
+        }
+        public void setPendingFrames(List<String> pendingFrames) {
+            this.pendingFrames = pendingFrames;
+        }
+    }
+
+    // Default constructor
+    public HandoffSnapshot() {
+    }
+
+    public HandoffSnapshot(long createdAt, String tickets, Map<String, UserState> users) {
+        this.createdAt = createdAt;
+        this.tickets = tickets;
+        this.users = users;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public String getTickets() {
+        return tickets;
+    }
+    public void setTickets(String tickets) {
+        this.tickets = tickets;
+    }
+
+    public Map<String, UserState> getUsers() {
+        return users;
+    }
+    public void setUsers(Map<String, UserState> users) {
+        this.users = users;
+    }
+}
@@ -0,0 +1,60 @@
+package model;
+
+/**
+ * One message as kept in the history ring of a conversation. The JSON is the
+ * exact frame that was delivered, so a replay does not serialize it again.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class HistoryEntry {
+    private final long seq;
+    private final long timestamp;
+    private final String conversation;
+    private final long conversationSeq;
+    private final String json;
+
+    public HistoryEntry(long seq, long timestamp, String conversation, long conversationSeq, String json) {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.conversation = conversation;
+        this.conversationSeq = conversationSeq;
+        this.json = json;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getConversation() {
+        return conversation;
+    }
+
+    public long getConversationSeq() {
+        return conversationSeq;
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    /**
+     * Rough heap footprint used for the history memory budget.
+     */
+    public long estimateSize() {
+        return 64L + 2L * (json.length() + conversation.length());
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryEntry{" +
+                "seq=" + seq +
+                ", timestamp=" + timestamp +
+                ", conversation='" + conversation + '\'' +
+                ", conversationSeq=" + conversationSeq +
+                '}';
+    }
+}
@@ -2,6 +2,8 @@ package model;
 
 import jakarta.json.bind.annotation.JsonbProperty;
 
+import java.util.Map;
+
 public class Message {
     @JsonbProperty("sender")
     private String sender;
@@ -11,6 +13,18 @@ public class Message {
     private String recipient; 
     @JsonbProperty("timestamp")
     private long timestamp;
+    // Server-assigned sequence number, set on delivered and replayed messages
+    @JsonbProperty("seq")
+    private Long seq;
+    // Server-assigned position of the message within its conversation
+    @JsonbProperty("cseq")
+    private Long conversationSeq;
+    // Optional client correlation id, echoed on the replies to this message
+    @JsonbProperty("requestId")
+    private String requestId;
+    // Multi-recipient envelope: recipient username -> ciphertext for that recipient
+    @JsonbProperty("envelopes")
+    private Map<String, String> envelopes;
 
     // Default constructor
     public Message() {
@@ -60,13 +74,43 @@ public class Message {
         this.timestamp = timestamp;
     }
 
+    public Long getSeq() {
+        return seq;
+    }
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    public Long getConversationSeq() {
+        return conversationSeq;
+    }
+    public void setConversationSeq(Long conversationSeq) {
+        this.conversationSeq = conversationSeq;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public Map<String, String> getEnvelopes() {
+        return envelopes;
+    }
+    public void setEnvelopes(Map<String, String> envelopes) {
+        this.envelopes = envelopes;
+    }
+
     @Override
     public String toString() {
         return "Message{" +
                 "sender='" + sender + '\'' +
                 ", content='" + content + '\'' +
                 ", timestamp=" + timestamp +
+                (seq != null ? ", seq=" + seq : "") +
                 (recipient != null ? ", recipient='" + recipient + '\'' : "") +
+                (envelopes != null ? ", envelopes=" + envelopes.keySet() : "") +
                 '}';
     }
 }
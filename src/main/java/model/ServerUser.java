@@ -1,8 +1,10 @@
 package model;
 
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 /**
  * Represents a user with their public key information on the server side.
@@ -21,25 +23,25 @@ public class ServerUser {
         this.username = username;
         this.publicKeyN = publicKeyN;
         this.publicKeyE = publicKeyE;
-        this.publicKeyId = generatePublicKeyId(publicKeyN, publicKeyE);
+        this.publicKeyId = publicKeyIdOf(publicKeyN, publicKeyE);
         this.registrationTime = System.currentTimeMillis();
     }
 
-    // Generate a unique ID based on the public key
-    private String generatePublicKeyId(BigInteger n, BigInteger e) {
+    /**
+     * Generate a unique ID based on the public key: hex SHA-256 of "n:e" in lowercase hex
+     */
+    public static String publicKeyIdOf(BigInteger n, BigInteger e) {
+        return publicKeyIdOf(n.toString(16), e.toString(16));
+    }
+
+    /**
+     * Same ID from the key components already in canonical hex (lowercase, no leading zeros)
+     */
+    public static String publicKeyIdOf(String nHex, String eHex) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            String combined = n.toString(16) + ":" + e.toString(16);
-            byte[] hash = digest.digest(combined.getBytes());
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            return hexString.toString();
+            String combined = nHex + ":" + eHex;
+            return HexFormat.of().formatHex(digest.digest(combined.getBytes(StandardCharsets.US_ASCII)));
         } catch (NoSuchAlgorithmException ex) {
             throw new RuntimeException("SHA-256 not available", ex);
         }
@@ -0,0 +1,38 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * One RSA challenge verification in AuthenticationHandler.verifySignature.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+@Name("chatapp.Authentication")
+@Label("Signature Verification")
+@Category({"ChatApp", "Authentication"})
+@Threshold("10 ms")
+@StackTrace(false)
+public class AuthenticationEvent extends Event {
+    @Label("Trace Id")
+    public long traceId;
+
+    @Label("Username")
+    public String username;
+
+    @Label("User Lookup")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lookupTime;
+
+    @Label("Signature Check")
+    @Timespan(Timespan.NANOSECONDS)
+    public long verifyTime;
+
+    @Label("Valid")
+    public boolean valid;
+}
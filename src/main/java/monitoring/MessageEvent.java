@@ -0,0 +1,48 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Handling of one inbound text frame in ChatWebSocket.onMessage.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+@Name("chatapp.Message")
+@Label("Message Handling")
+@Category({"ChatApp", "Messages"})
+@Description("Handling of one inbound text frame, split into stages")
+@Threshold("10 ms")
+@StackTrace(false)
+public class MessageEvent extends Event {
+    @Label("Trace Id")
+    public long traceId;
+
+    @Label("Session Id")
+    public String sessionId;
+
+    @Label("Command")
+    @Description("Text command, or the message kind for JSON messages")
+    public String command;
+
+    @Label("Frame Length")
+    public int frameLength;
+
+    @Label("Authentication Check")
+    @Timespan(Timespan.NANOSECONDS)
+    public long authTime;
+
+    @Label("Parsing")
+    @Timespan(Timespan.NANOSECONDS)
+    public long parseTime;
+
+    @Label("Routing")
+    @Timespan(Timespan.NANOSECONDS)
+    public long routeTime;
+}
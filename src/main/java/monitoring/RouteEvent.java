@@ -0,0 +1,50 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Routing of one chat message in MessageHandler.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+@Name("chatapp.Route")
+@Label("Message Routing")
+@Category({"ChatApp", "Messages"})
+@Description("Recipient lookup, serialization, history append and enqueueing of one message")
+@Threshold("5 ms")
+@StackTrace(false)
+public class RouteEvent extends Event {
+    @Label("Trace Id")
+    public long traceId;
+
+    @Label("Kind")
+    @Description("direct, envelope or broadcast")
+    public String kind;
+
+    @Label("Recipients")
+    public int recipients;
+
+    @Label("Recipient Lookup")
+    @Description("Online session and UserDatabase lookups")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lookupTime;
+
+    @Label("Serialization")
+    @Timespan(Timespan.NANOSECONDS)
+    public long serializeTime;
+
+    @Label("History Append")
+    @Timespan(Timespan.NANOSECONDS)
+    public long storeTime;
+
+    @Label("Enqueue")
+    @Timespan(Timespan.NANOSECONDS)
+    public long sendTime;
+}
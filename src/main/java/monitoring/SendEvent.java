@@ -0,0 +1,54 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * One outbound frame, from being queued until the container reports the write
+ * as done. The event begins and commits on different threads.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+@Name("chatapp.Send")
+@Label("Frame Send")
+@Category({"ChatApp", "Network"})
+@Description("Outbound frame from enqueue to write completion")
+@Threshold("20 ms")
+@StackTrace(false)
+public class SendEvent extends Event {
+    // Checked before anything is allocated for a frame
+    public static final EventType TYPE = EventType.getEventType(SendEvent.class);
+
+    @Label("Trace Id")
+    public long traceId;
+
+    @Label("Session Id")
+    public String sessionId;
+
+    @Label("Binary")
+    public boolean binary;
+
+    @Label("Frame Size")
+    @Description("Characters of a text frame, bytes of a binary frame")
+    public long size;
+
+    @Label("Queued Ahead")
+    @DataAmount
+    public long queuedAhead;
+
+    @Label("Queue Wait")
+    @Description("Time until the frame was handed to the container")
+    @Timespan(Timespan.NANOSECONDS)
+    public long queueTime;
+
+    @Label("Succeeded")
+    public boolean succeeded;
+}
@@ -0,0 +1,40 @@
+package monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-message trace ids for the JFR events. A trace starts when a frame is
+ * received and is bound to the handling thread until it ends; frames queued
+ * while it is active carry its id to their asynchronous send.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public final class Trace {
+    private static final AtomicLong nextId = new AtomicLong(1);
+    // Mutable holder, so binding a trace does not box a Long per message
+    private static final ThreadLocal<long[]> current = ThreadLocal.withInitial(() -> new long[1]);
+
+    private Trace() {
+    }
+
+    /**
+     * Starts a new trace on the calling thread.
+     * @return the trace id
+     */
+    public static long begin() {
+        long id = nextId.getAndIncrement();
+        current.get()[0] = id;
+        return id;
+    }
+
+    /**
+     * @return the id of the trace active on the calling thread, or 0 if there is none
+     */
+    public static long current() {
+        return current.get()[0];
+    }
+
+    public static void end() {
+        current.get()[0] = 0;
+    }
+}
@@ -0,0 +1,178 @@
+package monitoring;
+
+import jdk.jfr.Timespan;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a JFR recording into per-stage latency breakdowns of the chatapp.*
+ * events, followed by the slowest traces with the time spent in each stage.
+ *
+ * Usage: java monitoring.TraceAnalyzer recording.jfr [slowest traces to list, default 10]
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class TraceAnalyzer {
+    private static final String EVENT_PREFIX = "chatapp.";
+    // Built-in field holding the event's own duration
+    private static final String TOTAL = "duration";
+
+    // event type -> stage -> samples in nanoseconds
+    private final Map<String, Map<String, Samples>> stages = new LinkedHashMap<>();
+    private final Map<Long, TraceSummary> traces = new HashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: java monitoring.TraceAnalyzer <recording.jfr> [slowest traces]");
+            System.exit(1);
+        }
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        TraceAnalyzer analyzer = new TraceAnalyzer();
+        analyzer.read(Paths.get(args[0]));
+        analyzer.printStages();
+        analyzer.printSlowestTraces(top);
+    }
+
+    private void read(Path recording) throws IOException {
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                String type = event.getEventType().getName();
+                if (type.startsWith(EVENT_PREFIX)) {
+                    add(type.substring(EVENT_PREFIX.length()), event);
+                }
+            }
+        }
+    }
+
+    private void add(String type, RecordedEvent event) {
+        Map<String, Samples> byStage = stages.computeIfAbsent(type, k -> new LinkedHashMap<>());
+        long total = event.getDuration().toNanos();
+        byStage.computeIfAbsent(TOTAL, k -> new Samples()).add(total);
+        for (ValueDescriptor field : event.getFields()) {
+            if (isStage(field)) {
+                byStage.computeIfAbsent(field.getName(), k -> new Samples()).add(event.getDuration(field.getName()).toNanos());
+            }
+        }
+        if (event.hasField("traceId") && event.getLong("traceId") != 0) {
+            traces.computeIfAbsent(event.getLong("traceId"), TraceSummary::new).add(type, event, total);
+        }
+    }
+
+    private void printStages() {
+        if (stages.isEmpty()) {
+            System.out.println("No chatapp events in the recording. Events below their threshold are not recorded.");
+            return;
+        }
+        System.out.printf("%-16s %-14s %8s %10s %10s %10s %10s%n", "event", "stage", "count", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, Map<String, Samples>> type : stages.entrySet()) {
+            for (Map.Entry<String, Samples> stage : type.getValue().entrySet()) {
+                Samples samples = stage.getValue();
+                System.out.printf("%-16s %-14s %8d %10.3f %10.3f %10.3f %10.3f%n", type.getKey(), stage.getKey(), samples.size(),
+                        millis(samples.percentile(50)), millis(samples.percentile(95)),
+                        millis(samples.percentile(99)), millis(samples.percentile(100)));
+            }
+        }
+    }
+
+    private void printSlowestTraces(int top) {
+        List<TraceSummary> slowest = new ArrayList<>(traces.values());
+        slowest.sort((a, b) -> Long.compare(b.total, a.total));
+        if (slowest.isEmpty() || top <= 0) {
+            return;
+        }
+        System.out.println();
+        System.out.println("Slowest traces:");
+        for (TraceSummary trace : slowest.subList(0, Math.min(top, slowest.size()))) {
+            System.out.printf("trace %d  %.3f ms%n", trace.traceId, millis(trace.total));
+            for (String line : trace.lines) {
+                System.out.println("  " + line);
+            }
+        }
+    }
+
+    private static boolean isStage(ValueDescriptor field) {
+        return field.getAnnotation(Timespan.class) != null && !TOTAL.equals(field.getName());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /**
+     * Growable array of samples; sorted once when a percentile is asked for.
+     */
+    private static final class Samples {
+        private long[] values = new long[64];
+        private int size;
+        private boolean sorted;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+            sorted = false;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        // Nearest-rank percentile
+        private long percentile(int p) {
+            if (!sorted) {
+                Arrays.sort(values, 0, size);
+                sorted = true;
+            }
+            int rank = (int) Math.ceil(p / 100.0 * size);
+            return values[Math.max(rank - 1, 0)];
+        }
+    }
+
+    /**
+     * All recorded events of one trace.
+     */
+    private static final class TraceSummary {
+        private final long traceId;
+        private final List<String> lines = new ArrayList<>();
+        private Instant start;
+        private Instant end;
+        private long total;
+
+        private TraceSummary(long traceId) {
+            this.traceId = traceId;
+        }
+
+        private void add(String type, RecordedEvent event, long duration) {
+            // Sends complete after the handling returned, so a trace spans from its first start to its last end
+            if (start == null || event.getStartTime().isBefore(start)) {
+                start = event.getStartTime();
+            }
+            if (end == null || event.getEndTime().isAfter(end)) {
+                end = event.getEndTime();
+            }
+            total = Duration.between(start, end).toNanos();
+            StringBuilder line = new StringBuilder(String.format("%-14s %.3f ms", type, millis(duration)));
+            for (ValueDescriptor field : event.getFields()) {
+                if (isStage(field)) {
+                    line.append(String.format("  %s=%.3f", field.getName(), millis(event.getDuration(field.getName()).toNanos())));
+                }
+            }
+            lines.add(line.toString());
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Reading or writing the user database file.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+@Name("chatapp.UserDatabase")
+@Label("User Database I/O")
+@Category({"ChatApp", "Storage"})
+@Threshold("10 ms")
+@StackTrace(false)
+public class UserDatabaseEvent extends Event {
+    @Label("Trace Id")
+    public long traceId;
+
+    @Label("Operation")
+    @Description("load or save")
+    public String operation;
+
+    @Label("Users")
+    public int users;
+}
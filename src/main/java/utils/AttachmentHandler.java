@@ -0,0 +1,467 @@
+package utils;
+
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import model.AttachmentRequest;
+import model.AttachmentTransfer;
+import model.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Streams binary attachments between users without holding them on the heap.
+ * Uploads arrive as (partial) binary frames and are written straight to a spool
+ * file; downloads are read from the spool file into one direct buffer per
+ * stream and sent one chunk at a time through the recipient's OutboundQueue.
+ *
+ * Binary frame layout (both directions):
+ *   [1 byte type = 0x01][8 bytes transfer id][8 bytes offset][payload]
+ *
+ * Text commands:
+ *   attachment-begin:{"recipient","name","size"}  -> attachment-ready:<id>:<offset>:<window>
+ *   attachment-begin:{"id"}                       -> resume, same reply with the stored offset
+ *   attachment-fetch:<id>:<offset>                -> attachment-stream:<id>:<offset>:<size>, chunks, attachment-end:<id>
+ * The server acknowledges uploads with attachment-ack:<id>:<received>; a client
+ * keeps at most <window> unacknowledged bytes in flight. The window starts at
+ * the offset of attachment-ready or the last ack, and a chunk that goes past
+ * it fails the upload with "Window exceeded"; the client resumes from the
+ * offset the resume returns.
+ * A completed upload is also stored as a message in the conversation of
+ * sender and recipient, with the content attachment-offer:<transfer json>,
+ * so a recipient who was offline learns the id from its next sync.
+ * Transfers are kept in memory only. The LogCompactor calls sweep() on every
+ * run, which drops expired transfers and deletes spool files no transfer
+ * refers to, such as those left behind by a restart.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.3
+ */
+public class AttachmentHandler {
+    public static final byte FRAME_ATTACHMENT_CHUNK = 0x01;
+    static final int CHUNK_HEADER_BYTES = 17;
+
+    private static final String ATTACHMENT_DIR = "data/attachments";
+    static final long MAX_ATTACHMENT_BYTES = 64L * 1024 * 1024;
+    static final int MAX_OPEN_UPLOADS_PER_USER = 4;
+    static final long ACK_INTERVAL_BYTES = 256L * 1024;
+    static final long WINDOW_BYTES = 1024L * 1024;
+    static final int DOWNLOAD_CHUNK_BYTES = 64 * 1024;
+    public static final int PART_BUFFER_BYTES = 64 * 1024;
+    private static final long STALE_UPLOAD_MILLIS = 60L * 60 * 1000; // 1 hour
+    private static final long ATTACHMENT_TTL_MILLIS = 24L * 60 * 60 * 1000; // 24 hours
+
+    private static final Jsonb jsonb = JsonbBuilder.create();
+    private static final SecureRandom random = new SecureRandom();
+    private static final Map<Long, AttachmentTransfer> transfers = new ConcurrentHashMap<>();
+
+    /**
+     * Starts a new upload or resumes an unfinished one.
+     * @param state the uploading session
+     * @param requestJson the attachment-begin body
+     */
+    public static void begin(SessionState state, String requestJson) {
+        AttachmentRequest request;
+        try {
+            request = jsonb.fromJson(requestJson, AttachmentRequest.class);
+        } catch (RuntimeException e) {
+            state.reply("attachment-failed::Invalid request");
+            return;
+        }
+        removeExpiredTransfers();
+
+        String sender = state.getUsername();
+        AttachmentTransfer transfer;
+        if (request.getId() != null) {
+            transfer = findTransfer(request.getId());
+            if (transfer == null || !transfer.getSender().equals(sender) || transfer.isComplete()) {
+                state.reply("attachment-failed:" + request.getId() + ":Unknown transfer");
+                return;
+            }
+        } else {
+            if (request.getRecipient() == null || !UserDatabase.userExists(request.getRecipient())) {
+                state.reply("attachment-failed::User does not exist");
+                return;
+            }
+            if (request.getSize() <= 0 || request.getSize() > MAX_ATTACHMENT_BYTES) {
+                state.reply("attachment-failed::Size must be between 1 and " + MAX_ATTACHMENT_BYTES + " bytes");
+                return;
+            }
+            long openUploads = transfers.values().stream()
+                    .filter(t -> !t.isComplete() && t.getSender().equals(sender))
+                    .count();
+            if (openUploads >= MAX_OPEN_UPLOADS_PER_USER) {
+                state.reply("attachment-failed::Too many open uploads");
+                return;
+            }
+            long idBits = random.nextLong();
+            transfer = new AttachmentTransfer(idBits, sender, request.getRecipient(), request.getName(),
+                    request.getSize(), Paths.get(ATTACHMENT_DIR, AttachmentTransfer.formatId(idBits) + ".part"));
+            transfers.put(idBits, transfer);
+        }
+
+        try {
+            synchronized (transfer) {
+                if (transfer.getChannel() == null) {
+                    Files.createDirectories(transfer.getSpoolFile().getParent());
+                    transfer.setChannel(FileChannel.open(transfer.getSpoolFile(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ));
+                }
+                // A resume from another session takes the upload over
+                transfer.setUploadSessionId(state.getSession().getId());
+                // The offset in attachment-ready acknowledges everything before it
+                transfer.setAcked(transfer.getReceived());
+            }
+        } catch (IOException e) {
+            System.err.println("[ATTACHMENT] Failed to open spool file for " + transfer.getId() + ": " + e.getMessage());
+            abort(transfer);
+            state.reply("attachment-failed:" + transfer.getId() + ":Storage error");
+            return;
+        }
+
+        state.reply("attachment-ready:" + transfer.getId() + ":" + transfer.getReceived() + ":" + WINDOW_BYTES);
+        System.out.println("[ATTACHMENT] Upload ready: " + transfer);
+    }
+
+    /**
+     * Writes one part of an inbound binary message to its spool file. The
+     * container hands over at most PART_BUFFER_BYTES at a time, so an upload
+     * never needs more heap than that.
+     * @param state the uploading session
+     * @param part the received bytes
+     * @param last whether this part ends the binary message
+     */
+    public static void onBinaryPart(SessionState state, ByteBuffer part, boolean last) {
+        ChunkReader reader = state.getChunkReader();
+        try {
+            if (reader.failed) {
+                return;
+            }
+            if (reader.header.hasRemaining()) {
+                while (reader.header.hasRemaining() && part.hasRemaining()) {
+                    reader.header.put(part.get());
+                }
+                if (reader.header.hasRemaining()) {
+                    return;
+                }
+                reader.header.flip();
+                if (!openChunk(state, reader)) {
+                    reader.failed = true;
+                    return;
+                }
+            }
+            if (part.hasRemaining()) {
+                writeChunk(state, reader, part);
+            }
+        } finally {
+            if (last) {
+                if (reader.transfer != null && !reader.failed) {
+                    afterChunk(state, reader.transfer, reader.ackedBefore);
+                }
+                reader.reset();
+            }
+        }
+    }
+
+    /**
+     * Streams a completed attachment to the requesting session, starting at the given offset.
+     */
+    public static void fetch(SessionState state, String id, long offset) {
+        AttachmentTransfer transfer = findTransfer(id);
+        String username = state.getUsername();
+        if (transfer == null || !transfer.isComplete()
+                || !(username.equals(transfer.getRecipient()) || username.equals(transfer.getSender()))) {
+            state.reply("attachment-failed:" + id + ":Unknown transfer");
+            return;
+        }
+        if (offset < 0 || offset > transfer.getSize()) {
+            state.reply("attachment-failed:" + id + ":Invalid offset");
+            return;
+        }
+        try {
+            FileChannel channel = FileChannel.open(transfer.getSpoolFile(), StandardOpenOption.READ);
+            state.reply("attachment-stream:" + id + ":" + offset + ":" + transfer.getSize());
+            new DownloadStream(transfer, state, channel, offset).sendNext();
+        } catch (IOException e) {
+            System.err.println("[ATTACHMENT] Failed to open " + transfer.getId() + " for download: " + e.getMessage());
+            state.reply("attachment-failed:" + id + ":Storage error");
+        }
+    }
+
+    /**
+     * Releases the spool file handles of uploads owned by a closing session.
+     * Uploads of the same user on other sessions keep theirs. The uploads
+     * themselves stay resumable until they go stale.
+     */
+    public static void cleanup(SessionState state) {
+        state.getChunkReader().reset();
+        String sessionId = state.getSession().getId();
+        for (AttachmentTransfer transfer : transfers.values()) {
+            synchronized (transfer) {
+                if (!transfer.isComplete() && sessionId.equals(transfer.getUploadSessionId())) {
+                    closeChannel(transfer);
+                    transfer.setUploadSessionId(null);
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------- //
+
+    private static boolean openChunk(SessionState state, ChunkReader reader) {
+        byte type = reader.header.get();
+        long idBits = reader.header.getLong();
+        long offset = reader.header.getLong();
+        if (type != FRAME_ATTACHMENT_CHUNK) {
+            state.send("attachment-failed::Unknown frame type " + type);
+            return false;
+        }
+        AttachmentTransfer transfer = transfers.get(idBits);
+        String id = AttachmentTransfer.formatId(idBits);
+        if (transfer == null || transfer.isComplete() || transfer.getChannel() == null
+                || !transfer.getSender().equals(state.getUsername())) {
+            state.send("attachment-failed:" + id + ":Unknown transfer");
+            return false;
+        }
+        // Chunks are appended in order; a gap means the client must resume
+        if (offset != transfer.getReceived()) {
+            state.send("attachment-failed:" + id + ":Expected offset " + transfer.getReceived());
+            return false;
+        }
+        reader.transfer = transfer;
+        reader.position = offset;
+        reader.ackedBefore = offset;
+        return true;
+    }
+
+    private static void writeChunk(SessionState state, ChunkReader reader, ByteBuffer part) {
+        AttachmentTransfer transfer = reader.transfer;
+        if (reader.position + part.remaining() > transfer.getAcked() + WINDOW_BYTES) {
+            state.send("attachment-failed:" + transfer.getId() + ":Window exceeded");
+            System.out.println("[ATTACHMENT] Upload ran past its window, resume required: " + transfer);
+            reader.failed = true;
+            return;
+        }
+        if (reader.position + part.remaining() > transfer.getSize()) {
+            state.send("attachment-failed:" + transfer.getId() + ":Size exceeded");
+            System.out.println("[ATTACHMENT] Upload exceeded declared size, aborting: " + transfer);
+            abort(transfer);
+            reader.failed = true;
+            return;
+        }
+        try {
+            synchronized (transfer) {
+                FileChannel channel = transfer.getChannel();
+                if (channel == null) {
+                    // Aborted or expired since the chunk header was read
+                    state.send("attachment-failed:" + transfer.getId() + ":Unknown transfer");
+                    reader.failed = true;
+                    return;
+                }
+                while (part.hasRemaining()) {
+                    reader.position += channel.write(part, reader.position);
+                }
+            }
+            transfer.setReceived(reader.position);
+        } catch (IOException e) {
+            System.err.println("[ATTACHMENT] Failed to spool chunk for " + transfer.getId() + ": " + e.getMessage());
+            state.send("attachment-failed:" + transfer.getId() + ":Storage error");
+            reader.failed = true;
+        }
+    }
+
+    private static void afterChunk(SessionState state, AttachmentTransfer transfer, long ackedBefore) {
+        long received = transfer.getReceived();
+        if (received == transfer.getSize()) {
+            complete(state, transfer);
+        } else if (received / ACK_INTERVAL_BYTES != ackedBefore / ACK_INTERVAL_BYTES) {
+            transfer.setAcked(received);
+            state.send("attachment-ack:" + transfer.getId() + ":" + received);
+        }
+    }
+
+    private static void complete(SessionState state, AttachmentTransfer transfer) {
+        closeChannel(transfer);
+        transfer.setComplete(true);
+        state.send("attachment-ack:" + transfer.getId() + ":" + transfer.getReceived());
+        state.send("attachment-complete:" + transfer.getId());
+        System.out.println("[ATTACHMENT] Upload complete: " + transfer);
+
+        // Kept in the conversation for a recipient who is offline; the offer names the id, so receiving it twice is harmless
+        String offer = "attachment-offer:" + jsonb.toJson(transfer);
+        Message notice = new Message(transfer.getSender(), offer, transfer.getRecipient());
+        HistoryStore.record(HistoryStore.directConversation(transfer.getSender(), transfer.getRecipient()),
+                notice.getTimestamp(), jsonb.toJson(notice));
+
+        Session recipientSession = MessageHandler.getUserSession(transfer.getRecipient());
+        if (recipientSession != null && recipientSession.isOpen()) {
+            SessionState.of(recipientSession).send(offer);
+        }
+    }
+
+    private static AttachmentTransfer findTransfer(String id) {
+        try {
+            return transfers.get(Long.parseUnsignedLong(id, 16));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void abort(AttachmentTransfer transfer) {
+        transfers.remove(transfer.getIdBits());
+        closeChannel(transfer);
+        try {
+            Files.deleteIfExists(transfer.getSpoolFile());
+        } catch (IOException e) {
+            System.err.println("[ATTACHMENT] Failed to delete spool file " + transfer.getSpoolFile() + ": " + e.getMessage());
+        }
+    }
+
+    private static void closeChannel(AttachmentTransfer transfer) {
+        synchronized (transfer) {
+            FileChannel channel = transfer.getChannel();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("[ATTACHMENT] Failed to close spool file: " + e.getMessage());
+                }
+                transfer.setChannel(null);
+            }
+        }
+    }
+
+    /**
+     * Removes expired transfers and deletes the spool files of unknown transfers.
+     * @return the number of deleted spool files
+     */
+    static int sweep() {
+        removeExpiredTransfers();
+        Path directory = Paths.get(ATTACHMENT_DIR);
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.part")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (findTransfer(name.substring(0, name.length() - ".part".length())) == null) {
+                    Files.deleteIfExists(file);
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[ATTACHMENT] Failed to sweep " + ATTACHMENT_DIR + ": " + e.getMessage());
+        }
+        if (deleted > 0) {
+            System.out.println("[ATTACHMENT] Deleted " + deleted + " orphaned spool files");
+        }
+        return deleted;
+    }
+
+    // Drops uploads nobody resumed and attachments past their TTL
+    private static void removeExpiredTransfers() {
+        long now = System.currentTimeMillis();
+        for (AttachmentTransfer transfer : transfers.values()) {
+            boolean stale = !transfer.isComplete() && now - transfer.getLastActivity() > STALE_UPLOAD_MILLIS;
+            if (stale || now - transfer.getCreatedAt() > ATTACHMENT_TTL_MILLIS) {
+                System.out.println("[ATTACHMENT] Removing expired transfer: " + transfer);
+                abort(transfer);
+            }
+        }
+    }
+
+    /**
+     * Parse state of the inbound binary message a session is currently sending.
+     */
+    public static final class ChunkReader {
+        private final ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_BYTES);
+        private AttachmentTransfer transfer;
+        private long position;
+        private long ackedBefore;
+        private boolean failed;
+
+        private void reset() {
+            header.clear();
+            transfer = null;
+            failed = false;
+        }
+    }
+
+    /**
+     * Sends one chunk at a time; the next chunk is read once the previous one
+     * has been written, so a download holds a single direct buffer and never
+     * delays queued chat frames by more than one chunk.
+     */
+    private static final class DownloadStream implements SendHandler {
+        private final AttachmentTransfer transfer;
+        private final SessionState state;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_HEADER_BYTES + DOWNLOAD_CHUNK_BYTES);
+        private long position;
+
+        private DownloadStream(AttachmentTransfer transfer, SessionState state, FileChannel channel, long position) {
+            this.transfer = transfer;
+            this.state = state;
+            this.channel = channel;
+            this.position = position;
+        }
+
+        private void sendNext() {
+            if (position >= transfer.getSize()) {
+                close();
+                state.send("attachment-end:" + transfer.getId());
+                return;
+            }
+            int length = (int) Math.min(DOWNLOAD_CHUNK_BYTES, transfer.getSize() - position);
+            buffer.clear();
+            buffer.put(FRAME_ATTACHMENT_CHUNK).putLong(transfer.getIdBits()).putLong(position);
+            buffer.limit(CHUNK_HEADER_BYTES + length);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position() - CHUNK_HEADER_BYTES) < 0) {
+                        throw new IOException("Unexpected end of spool file");
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[ATTACHMENT] Failed to read " + transfer.getId() + ": " + e.getMessage());
+                close();
+                state.send("attachment-failed:" + transfer.getId() + ":Storage error");
+                return;
+            }
+            buffer.flip();
+            position += length;
+            if (!state.getOutbound().enqueueBinary(buffer, this)) {
+                close();
+            }
+        }
+
+        @Override
+        public void onResult(SendResult result) {
+            if (result.isOK()) {
+                sendNext();
+            } else {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("[ATTACHMENT] Failed to close download channel: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans a frame out to every connected session. Sessions are spread over a
+ * fixed number of shards by identity, so a session stays in its shard for its
+ * whole lifetime. A broadcast to a large audience hands each shard to a worker
+ * of a dedicated pool, which makes its duration grow with sessions / cores
+ * instead of sessions; small audiences are sent inline on the calling thread.
+ * Each shard sends its broadcasts one at a time, in the order they were
+ * started, so every session gets the broadcasts in the same order. A failing
+ * session is counted and skipped; the rest of its shard is still sent to.
+ *
+ * Configuration (system properties):
+ *   chatapp.broadcast.workers         worker threads (default: available processors)
+ *   chatapp.broadcast.inlineThreshold audiences up to this size are sent inline (default 512)
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.2
+ */
+public class BroadcastEngine {
+    static final int SHARDS = 64;
+    static final int WORKERS = Integer.getInteger("chatapp.broadcast.workers", Runtime.getRuntime().availableProcessors());
+    static final int INLINE_THRESHOLD = Integer.getInteger("chatapp.broadcast.inlineThreshold", 512);
+
+    private static final List<Shard> shards = new ArrayList<>(SHARDS);
+    private static final AtomicInteger size = new AtomicInteger();
+    private static final AtomicInteger workerCount = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> {
+        Thread thread = new Thread(r, "broadcast-worker-" + workerCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(new Shard());
+        }
+    }
+
+    /**
+     * Adds a session to the broadcast audience.
+     */
+    public static void register(SessionState state) {
+        if (shardOf(state).sessions.add(state)) {
+            size.incrementAndGet();
+        }
+    }
+
+    public static void unregister(SessionState state) {
+        if (shardOf(state).sessions.remove(state)) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of registered sessions
+     */
+    public static int size() {
+        return size.get();
+    }
+
+    /**
+     * Queues a frame for every registered, open session. Sessions that
+     * negotiated compression share one compressed copy of the frame.
+     * @return completes once the frame was handed to every session's queue
+     */
+    public static CompletableFuture<Result> broadcast(String frame) {
+        Fanout fanout = new Fanout(frame);
+        // Queued to all shards at once, so concurrent broadcasts have the same order in every shard
+        synchronized (shards) {
+            for (Shard shard : shards) {
+                shard.pending.add(fanout);
+            }
+        }
+        // A single worker would only add a handoff to the sequential loop
+        boolean inline = WORKERS <= 1 || size.get() <= INLINE_THRESHOLD;
+        for (Shard shard : shards) {
+            shard.schedule(inline);
+        }
+        return fanout.done;
+    }
+
+    private static Shard shardOf(SessionState state) {
+        return shards.get(Math.floorMod(System.identityHashCode(state), SHARDS));
+    }
+
+    // The sessions of one shard and the broadcasts waiting for them, sent by one thread at a time
+    private static final class Shard {
+        private final Set<SessionState> sessions = ConcurrentHashMap.newKeySet();
+        private final Queue<Fanout> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        // Starts sending unless another thread already is; that thread also sends what was just queued
+        private void schedule(boolean inline) {
+            if (sending.compareAndSet(false, true)) {
+                if (inline) {
+                    sendPending();
+                } else {
+                    workers.execute(this::sendPending);
+                }
+            }
+        }
+
+        private void sendPending() {
+            do {
+                Fanout fanout;
+                while ((fanout = pending.poll()) != null) {
+                    fanout.send(sessions);
+                }
+                sending.set(false);
+                // A broadcast queued between the last poll and the reset has no sender yet
+            } while (!pending.isEmpty() && sending.compareAndSet(false, true));
+        }
+    }
+
+    /**
+     * Outcome of one broadcast.
+     */
+    public static final class Result {
+        private final int delivered;
+        private final int failed;
+        private final long elapsedNanos;
+
+        private Result(int delivered, int failed, long elapsedNanos) {
+            this.delivered = delivered;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return sessions whose queue accepted the frame
+         */
+        public int getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * @return open sessions whose queue rejected the frame because it was full, or whose send failed
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return time from the start of the broadcast until the last shard was sent
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    // One broadcast in flight; the shard that finishes last completes it
+    private static final class Fanout {
+        private final FrameCompressor.SharedFrame frame;
+        private final long start = System.nanoTime();
+        private final AtomicInteger pendingShards = new AtomicInteger(SHARDS);
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final CompletableFuture<Result> done = new CompletableFuture<>();
+
+        private Fanout(String frame) {
+            this.frame = new FrameCompressor.SharedFrame(frame);
+        }
+
+        private void send(Set<SessionState> shard) {
+            int shardDelivered = 0;
+            int shardFailed = 0;
+            for (SessionState state : shard) {
+                try {
+                    if (!state.getSession().isOpen()) {
+                        continue;
+                    }
+                    if (state.send(frame)) {
+                        shardDelivered++;
+                    } else {
+                        shardFailed++;
+                    }
+                } catch (RuntimeException e) {
+                    shardFailed++;
+                    System.err.println("[BROADCAST] Send to session failed: " + e.getMessage());
+                }
+            }
+            delivered.addAndGet(shardDelivered);
+            failed.addAndGet(shardFailed);
+            if (pendingShards.decrementAndGet() == 0) {
+                done.complete(new Result(delivered.get(), failed.get(), System.nanoTime() - start));
+            }
+        }
+    }
+}
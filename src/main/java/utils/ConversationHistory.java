@@ -0,0 +1,125 @@
+package utils;
+
+import model.HistoryEntry;
+
+import java.util.List;
+
+/**
+ * Bounded ring of the most recent messages of one conversation. The ring is
+ * limited by entry count and by estimated heap size; evicted messages stay
+ * available from the MessageLog on disk.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class ConversationHistory {
+    private final HistoryEntry[] entries;
+    private final long maxBytes;
+    private int head; // Index of the oldest entry
+    private int count;
+    private long bytes;
+    // Every message of this conversation with seq >= coveredFrom is in the ring
+    private long coveredFrom;
+    private boolean retired;
+
+    public ConversationHistory(int depth, long maxBytes, long coveredFrom) {
+        this.entries = new HistoryEntry[depth];
+        this.maxBytes = maxBytes;
+        this.coveredFrom = coveredFrom;
+    }
+
+    /**
+     * Adds an entry, evicting the oldest ones if the ring is full.
+     * @return the change of the ring's estimated size in bytes
+     */
+    public synchronized long append(HistoryEntry entry) {
+        long before = bytes;
+        long size = entry.estimateSize();
+        while (count > 0 && (count == entries.length || bytes + size > maxBytes)) {
+            evictOldest();
+        }
+        entries[(head + count) % entries.length] = entry;
+        count++;
+        bytes += size;
+        return bytes - before;
+    }
+
+    /**
+     * Adds all entries with seq &gt;= fromSeq to the list, oldest first.
+     * @return the seq from which on the added entries are complete, see getCoveredFrom
+     */
+    public synchronized long collect(long fromSeq, List<HistoryEntry> out) {
+        for (int i = 0; i < count; i++) {
+            HistoryEntry entry = entries[(head + i) % entries.length];
+            if (entry.getSeq() >= fromSeq) {
+                out.add(entry);
+            }
+        }
+        return coveredFrom;
+    }
+
+    public synchronized long getCoveredFrom() {
+        return coveredFrom;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Rough heap footprint of the empty ring, used for the history memory budget.
+     */
+    public long estimateOverhead() {
+        return 96L + 8L * entries.length;
+    }
+
+    /**
+     * Evicts the entries written before the given time.
+     * @return the number of bytes freed
+     */
+    public synchronized long expire(long beforeTimestamp) {
+        long before = bytes;
+        while (count > 0 && entries[head].getTimestamp() < beforeTimestamp) {
+            evictOldest();
+        }
+        return before - bytes;
+    }
+
+    /**
+     * Empties the ring to free memory. Everything before nextSeq must then be read from disk.
+     * @return the number of bytes freed
+     */
+    public synchronized long drop(long nextSeq) {
+        long freed = bytes;
+        for (int i = 0; i < count; i++) {
+            entries[(head + i) % entries.length] = null;
+        }
+        head = 0;
+        count = 0;
+        bytes = 0;
+        coveredFrom = Math.max(coveredFrom, nextSeq);
+        return freed;
+    }
+
+    /**
+     * Empties the ring for good once it was removed from the store; an append
+     * that looked the ring up before must check isRetired and look up again.
+     * @return the number of bytes freed
+     */
+    public synchronized long retire(long nextSeq) {
+        retired = true;
+        return drop(nextSeq);
+    }
+
+    public synchronized boolean isRetired() {
+        return retired;
+    }
+
+    private void evictOldest() {
+        HistoryEntry oldest = entries[head];
+        entries[head] = null;
+        head = (head + 1) % entries.length;
+        count--;
+        bytes -= oldest.estimateSize();
+        coveredFrom = Math.max(coveredFrom, oldest.getSeq() + 1);
+    }
+}
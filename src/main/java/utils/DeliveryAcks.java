@@ -0,0 +1,183 @@
+package utils;
+
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import model.AckBatch;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the acknowledgements owed to one session and sends them as a single
+ * cumulative frame. Pending acks ride along with the next direct message to the
+ * session if one goes out within ACK_DELAY_MILLIS; otherwise they are flushed
+ * as "acks:{...}" when the delay expires. Acks taken for a frame the session
+ * does not accept are put back and go out with a later one.
+ * A message that was not delivered live caps the delivered mark of its
+ * conversation below it until the peer's sync has replayed it.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.2
+ */
+public class DeliveryAcks {
+    static final long ACK_DELAY_MILLIS = 50;
+
+    private static final Jsonb jsonb = JsonbBuilder.create();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ack-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SessionState state;
+    private Map<String, Long> delivered; // peer -> highest delivered cseq
+    private Map<String, Long> read; // peer -> highest read cseq
+    private Map<String, Long> accepted; // requestId -> cseq
+    private Map<String, long[]> undelivered; // peer -> {lowest, highest} cseq left to the peer's sync
+    private boolean flushScheduled;
+
+    public DeliveryAcks(SessionState state) {
+        this.state = state;
+    }
+
+    /**
+     * Records that the peer received a message live, and with it everything
+     * before it except the messages still left to the peer's sync.
+     */
+    public synchronized void delivered(String peer, long conversationSeq) {
+        long[] gap = undelivered != null ? undelivered.get(peer) : null;
+        if (gap != null && conversationSeq >= gap[0]) {
+            conversationSeq = gap[0] - 1;
+            if (conversationSeq <= 0) {
+                return;
+            }
+        }
+        if (delivered == null) {
+            delivered = new HashMap<>();
+        }
+        delivered.merge(peer, conversationSeq, Math::max);
+        scheduleFlush();
+    }
+
+    /**
+     * Records that a message could not be delivered live and waits for the peer's sync.
+     */
+    public synchronized void undelivered(String peer, long conversationSeq) {
+        if (undelivered == null) {
+            undelivered = new HashMap<>();
+        }
+        long[] gap = undelivered.computeIfAbsent(peer, key -> new long[] {conversationSeq, conversationSeq});
+        gap[0] = Math.min(gap[0], conversationSeq);
+        gap[1] = Math.max(gap[1], conversationSeq);
+    }
+
+    /**
+     * Records that a sync replayed everything up to the given conversation seq to the peer.
+     */
+    public synchronized void synced(String peer, long conversationSeq) {
+        long[] gap = undelivered != null ? undelivered.get(peer) : null;
+        if (gap != null && conversationSeq >= gap[0]) {
+            if (conversationSeq >= gap[1]) {
+                undelivered.remove(peer);
+            } else {
+                gap[0] = conversationSeq + 1; // Whether any message in between is missing is not tracked
+            }
+        }
+        delivered(peer, conversationSeq);
+    }
+
+    /**
+     * Records that the peer has read everything up to the given conversation seq.
+     */
+    public synchronized void read(String peer, long conversationSeq) {
+        if (read == null) {
+            read = new HashMap<>();
+        }
+        read.merge(peer, conversationSeq, Math::max);
+        scheduleFlush();
+    }
+
+    /**
+     * Records the conversation seq assigned to one of the session's own messages.
+     */
+    public synchronized void accepted(String requestId, long conversationSeq) {
+        if (accepted == null) {
+            accepted = new LinkedHashMap<>();
+        }
+        accepted.put(requestId, conversationSeq);
+        scheduleFlush();
+    }
+
+    /**
+     * Sends a message to the session with the pending acks piggybacked on it.
+     * @param json the serialized message object
+     * @return false if the session did not accept the frame; the acks stay pending then
+     */
+    public boolean sendWith(String json) {
+        AckBatch batch = take();
+        if (batch == null) {
+            return state.send(json);
+        }
+        boolean sent = state.send(json.substring(0, json.length() - 1) + ",\"acks\":" + jsonb.toJson(batch) + "}");
+        if (!sent) {
+            restore(batch);
+        }
+        return sent;
+    }
+
+    // Removes and returns the pending acks, or null if nothing is pending
+    private synchronized AckBatch take() {
+        if (delivered == null && read == null && accepted == null) {
+            return null;
+        }
+        AckBatch batch = new AckBatch(delivered, read, accepted);
+        delivered = null;
+        read = null;
+        accepted = null;
+        return batch;
+    }
+
+    // Merges acks that could not be sent with the ones recorded since they were taken
+    private synchronized void restore(AckBatch batch) {
+        if (!state.getSession().isOpen()) {
+            return;
+        }
+        if (batch.getDelivered() != null) {
+            batch.getDelivered().forEach(this::delivered);
+        }
+        if (batch.getRead() != null) {
+            batch.getRead().forEach(this::read);
+        }
+        if (batch.getAccepted() != null) {
+            if (accepted == null) {
+                accepted = new LinkedHashMap<>();
+            }
+            // Taken earlier, so they go first
+            Map<String, Long> merged = new LinkedHashMap<>(batch.getAccepted());
+            merged.putAll(accepted);
+            accepted = merged;
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(this::flush, ACK_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        AckBatch batch;
+        synchronized (this) {
+            flushScheduled = false;
+            batch = take();
+        }
+        if (batch != null && !state.send("acks:" + jsonb.toJson(batch))) {
+            restore(batch);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Application-level compression of text frames for one session. Once a client
+ * sent compression:deflate, text frames of at least THRESHOLD characters are
+ * sent as binary frames carrying the zlib compressed UTF-8 text, and the
+ * client may send its own large text frames the same way:
+ *   [1 byte type = 0x02][zlib stream]
+ * Every frame is compressed on its own, so a broadcast compressed once (see
+ * {@link SharedFrame}) can be shared by every recipient. The Deflater and
+ * Inflater live as long as the session and are reset between frames.
+ * Frames that would not get smaller stay text frames.
+ *
+ * Configuration (system properties):
+ *   chatapp.compression.threshold        minimum frame length in characters (default 512)
+ *   chatapp.compression.level            zlib level 1-9 (default 1, within a few percent of 6 on chat traffic)
+ *   chatapp.compression.maxInflatedBytes largest inbound frame after inflating (default 1 MiB)
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class FrameCompressor {
+    public static final byte FRAME_COMPRESSED_TEXT = 0x02;
+    public static final int THRESHOLD = Integer.getInteger("chatapp.compression.threshold", 512);
+    static final int LEVEL = Integer.getInteger("chatapp.compression.level", Deflater.BEST_SPEED);
+    static final int MAX_INFLATED_BYTES = Integer.getInteger("chatapp.compression.maxInflatedBytes", 1024 * 1024);
+
+    // Totals over all sessions, for the metrics endpoint
+    private static final AtomicLong framesCompressed = new AtomicLong();
+    private static final AtomicLong bytesBeforeCompression = new AtomicLong();
+    private static final AtomicLong bytesAfterCompression = new AtomicLong();
+
+    private final Deflater deflater = new Deflater(LEVEL);
+    private final Inflater inflater = new Inflater();
+    private byte[] scratch = new byte[4096];
+    private boolean closed;
+
+    // Inbound binary message state; the container delivers one message per session at a time
+    private boolean midMessage;
+    private boolean inflating;
+    private boolean skipType;
+    private boolean failed;
+    private byte[] inflated = new byte[4096];
+    private int inflatedLength;
+
+    /**
+     * Compresses a text frame into a binary frame.
+     * @return the frame ready to send, or null if it would not be smaller than the text
+     */
+    public synchronized ByteBuffer compress(String text) {
+        if (closed) {
+            return null;
+        }
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        deflater.reset();
+        deflater.setInput(utf8);
+        deflater.finish();
+        int length = 1;
+        // Output has to beat the text, so stopping once it doesn't bounds the scratch buffer
+        while (!deflater.finished() && length < utf8.length) {
+            if (length == scratch.length) {
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            length += deflater.deflate(scratch, length, Math.min(scratch.length, utf8.length) - length);
+        }
+        if (!deflater.finished() || length >= utf8.length) {
+            shrinkScratch();
+            return null;
+        }
+        framesCompressed.incrementAndGet();
+        bytesBeforeCompression.addAndGet(utf8.length);
+        bytesAfterCompression.addAndGet(length);
+        byte[] frame = new byte[length];
+        frame[0] = FRAME_COMPRESSED_TEXT;
+        System.arraycopy(scratch, 1, frame, 1, length - 1);
+        shrinkScratch();
+        return ByteBuffer.wrap(frame);
+    }
+
+    // Sync batches can be large; an idle session keeps only a small buffer
+    private void shrinkScratch() {
+        if (scratch.length > 64 * 1024) {
+            scratch = new byte[4096];
+        }
+    }
+
+    /**
+     * Looks at every part of an inbound binary message and tells whether the
+     * message is a compressed text frame. Parts of other binary messages, such
+     * as attachment chunks, are left to their handler.
+     */
+    public synchronized boolean isCompressedText(ByteBuffer part, boolean last) {
+        if (!midMessage) {
+            inflating = part.hasRemaining() && part.get(part.position()) == FRAME_COMPRESSED_TEXT;
+            if (inflating) {
+                inflater.reset();
+                inflatedLength = 0;
+                skipType = true;
+                failed = false;
+            }
+        }
+        midMessage = !last;
+        return inflating;
+    }
+
+    /**
+     * Inflates one part of a compressed text frame.
+     * @return the text once the last part arrived
+     * @throws DataFormatException if the frame is not a valid zlib stream or inflates
+     *                             to more than MAX_INFLATED_BYTES; the rest of the frame is ignored
+     */
+    public synchronized String inflate(ByteBuffer part, boolean last) throws DataFormatException {
+        if (failed || closed) {
+            return null;
+        }
+        if (skipType && part.hasRemaining()) {
+            part.get();
+            skipType = false;
+        }
+        try {
+            inflater.setInput(part);
+            while (!inflater.needsInput() && !inflater.finished()) {
+                if (inflatedLength == inflated.length) {
+                    if (inflated.length >= MAX_INFLATED_BYTES) {
+                        throw new DataFormatException("Frame exceeds " + MAX_INFLATED_BYTES + " bytes");
+                    }
+                    inflated = Arrays.copyOf(inflated, Math.min(inflated.length * 2, MAX_INFLATED_BYTES));
+                }
+                int n = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+                if (n == 0 && inflater.needsDictionary()) {
+                    throw new DataFormatException("Preset dictionaries are not supported");
+                }
+                inflatedLength += n;
+            }
+            if (!last) {
+                return null;
+            }
+            if (!inflater.finished()) {
+                throw new DataFormatException("Truncated frame");
+            }
+            return new String(inflated, 0, inflatedLength, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            failed = true;
+            throw e;
+        } finally {
+            if (last && inflated.length > 64 * 1024) {
+                inflated = new byte[4096];
+            }
+        }
+    }
+
+    /**
+     * @return the text of a frame built by {@link #compress}, or null for any other binary frame
+     */
+    static String inflateFrame(ByteBuffer frame) {
+        ByteBuffer data = frame.duplicate();
+        if (!data.hasRemaining() || data.get() != FRAME_COMPRESSED_TEXT) {
+            return null;
+        }
+        Inflater oneShot = new Inflater();
+        try {
+            oneShot.setInput(data);
+            ByteArrayOutputStream text = new ByteArrayOutputStream(data.remaining() * 2);
+            byte[] buffer = new byte[8192];
+            while (!oneShot.finished()) {
+                int n = oneShot.inflate(buffer);
+                if (n == 0 && (oneShot.needsInput() || oneShot.needsDictionary())) {
+                    return null;
+                }
+                text.write(buffer, 0, n);
+            }
+            return text.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            oneShot.end();
+        }
+    }
+
+    /**
+     * Frees the native zlib memory; called when the session closes.
+     */
+    public synchronized void close() {
+        closed = true;
+        deflater.end();
+        inflater.end();
+    }
+
+    public static long getFramesCompressed() {
+        return framesCompressed.get();
+    }
+
+    public static long getBytesBeforeCompression() {
+        return bytesBeforeCompression.get();
+    }
+
+    public static long getBytesAfterCompression() {
+        return bytesAfterCompression.get();
+    }
+
+    /**
+     * A text frame going to many sessions: compressed at most once, by the first
+     * recipient that negotiated compression, and shared by all others.
+     */
+    public static final class SharedFrame {
+        private final String text;
+        private ByteBuffer compressed;
+        private boolean attempted;
+
+        public SharedFrame(String text) {
+            this.text = text;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return a view of the compressed frame for one recipient, or null if compression does not pay off
+         */
+        synchronized ByteBuffer compressedWith(FrameCompressor compressor) {
+            if (!attempted) {
+                compressed = compressor.compress(text);
+                attempted = true;
+            }
+            return compressed != null ? compressed.duplicate() : null;
+        }
+    }
+}
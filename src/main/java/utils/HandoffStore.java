@@ -0,0 +1,176 @@
+package utils;
+
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import jakarta.json.bind.JsonbException;
+import model.HandoffSnapshot;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Carries session state across a restart. A draining server writes a
+ * {@link HandoffSnapshot} to data/handoff.json; the next process reads and
+ * deletes it at startup and gives every user their presence subscriptions and
+ * undelivered chat messages back when they authenticate again. Other queued
+ * frames, such as presence events and replies to requests, describe the old
+ * connection and are not handed over. Snapshots older than
+ * a session ticket's lifetime are ignored, as are users who do not come back
+ * within that time. Chat messages are in the message log either way, so a
+ * frame lost here is still found by the client's next sync.
+ *
+ * Configuration (system properties):
+ *   chatapp.drain.maxHandoffChars queued frame characters kept in a snapshot (default 64 Mi)
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class HandoffStore {
+    private static final String HANDOFF_FILE = "data/handoff.json";
+    static final long HANDOFF_TTL_MILLIS = 60L * 60 * 1000; // Session ticket lifetime
+    static final long MAX_HANDOFF_CHARS = Long.getLong("chatapp.drain.maxHandoffChars", 64L * 1024 * 1024);
+
+    private static final Jsonb jsonb = JsonbBuilder.create();
+    private static final Map<String, HandoffSnapshot.UserState> restored = new ConcurrentHashMap<>();
+    private static volatile long restoredCreatedAt;
+
+    /**
+     * Takes the watched users and the queued chat messages of every authenticated
+     * session and writes them together with the ticket state. Readable by the
+     * owner only, as the ticket state holds secret keys.
+     * @param tickets the exported ticket keys and revocations
+     * @return false if the snapshot could not be written
+     */
+    public static boolean save(String tickets, Collection<SessionState> sessions) {
+        Map<String, HandoffSnapshot.UserState> users = new HashMap<>();
+        long frameChars = 0;
+        int droppedFrames = 0;
+        for (SessionState state : sessions) {
+            String username = state.getUsername();
+            if (username == null) {
+                continue;
+            }
+            Set<String> watching = state.getWatching();
+            List<String> watched;
+            synchronized (watching) {
+                watched = new ArrayList<>(watching);
+            }
+            HandoffSnapshot.UserState user = users.computeIfAbsent(username,
+                    key -> new HandoffSnapshot.UserState(new ArrayList<>(), new ArrayList<>()));
+            Set<String> merged = new LinkedHashSet<>(user.getWatching());
+            merged.addAll(watched);
+            user.setWatching(new ArrayList<>(merged));
+            for (String frame : state.getOutbound().takePendingText()) {
+                if (!isMessageFrame(frame)) {
+                    continue;
+                }
+                if (frameChars + frame.length() > MAX_HANDOFF_CHARS) {
+                    droppedFrames++;
+                    continue;
+                }
+                frameChars += frame.length();
+                user.getPendingFrames().add(frame);
+            }
+        }
+
+        Path file = Paths.get(HANDOFF_FILE);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            Files.deleteIfExists(temp);
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            }
+            Files.writeString(temp, jsonb.toJson(new HandoffSnapshot(System.currentTimeMillis(), tickets, users)));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | JsonbException e) {
+            System.err.println("[HANDOFF] Failed to write " + HANDOFF_FILE + ": " + e.getMessage());
+            return false;
+        }
+        System.out.println("[HANDOFF] Saved " + users.size() + " users and " + frameChars + " characters of queued frames"
+                + (droppedFrames > 0 ? " (" + droppedFrames + " frames over the limit left to sync)" : ""));
+        return true;
+    }
+
+    // Chat messages are sent as bare JSON objects; replies carry a "#id " prefix
+    // and every other frame starts with its command
+    private static boolean isMessageFrame(String frame) {
+        return frame.startsWith("{");
+    }
+
+    /**
+     * Reads and deletes the snapshot of the previous process, if there is a recent one.
+     * @return the ticket state to restore, or null if there is none
+     */
+    public static String restore() {
+        Path file = Paths.get(HANDOFF_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            HandoffSnapshot snapshot = jsonb.fromJson(Files.readString(file), HandoffSnapshot.class);
+            // Read once: the secret keys don't stay on disk and an old snapshot is never restored twice
+            Files.delete(file);
+            long age = System.currentTimeMillis() - snapshot.getCreatedAt();
+            if (age > HANDOFF_TTL_MILLIS) {
+                System.out.println("[HANDOFF] Ignoring snapshot from " + age / 60_000 + " minutes ago");
+                return null;
+            }
+            if (snapshot.getUsers() != null) {
+                restored.putAll(snapshot.getUsers());
+            }
+            restoredCreatedAt = snapshot.getCreatedAt();
+            System.out.println("[HANDOFF] Restored snapshot of " + restored.size() + " users from " + age + " ms ago");
+            return snapshot.getTickets();
+        } catch (IOException | JsonbException e) {
+            System.err.println("[HANDOFF] Failed to read " + HANDOFF_FILE + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gives a freshly authenticated session what its user left behind before
+     * the restart: the undelivered messages in their original order, then the
+     * presence subscriptions, answered with a current presence frame as after watch:.
+     */
+    public static void resume(SessionState state) {
+        if (restored.isEmpty()) {
+            return;
+        }
+        if (System.currentTimeMillis() - restoredCreatedAt > HANDOFF_TTL_MILLIS) {
+            restored.clear();
+            return;
+        }
+        HandoffSnapshot.UserState user = restored.remove(state.getUsername());
+        if (user == null) {
+            return;
+        }
+        // Not replies to the request that authenticated the session
+        String requestId = state.getRequestId();
+        state.endRequest();
+        try {
+            if (user.getPendingFrames() != null) {
+                for (String frame : user.getPendingFrames()) {
+                    state.send(frame);
+                }
+            }
+            if (user.getWatching() != null && !user.getWatching().isEmpty()) {
+                PresenceRegistry.watch(state, user.getWatching());
+            }
+        } finally {
+            state.beginRequest(requestId);
+        }
+    }
+}
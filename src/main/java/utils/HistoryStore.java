@@ -0,0 +1,416 @@
+package utils;
+
+import model.HistoryEntry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/*
+ * Keeps recent messages per conversation so reconnecting clients can catch up.
+ * Every routed message is appended to the MessageLog and to the in-memory ring
+ * of its conversation. A sync replays the missing messages from the rings and
+ * reads older ones lazily from disk.
+ * Rings are kept in least recently used order. Over the memory budget, which
+ * also counts each ring's own array, the least recently used rings are
+ * removed; so are rings the retention policy emptied. A sync then reads the
+ * removed rings' messages from disk.
+ *
+ * Configuration (system properties):
+ *   chatapp.history.depth     messages per conversation ring (default 200)
+ *   chatapp.history.ringBytes memory budget per ring (default 256 KiB)
+ *   chatapp.history.maxBytes  memory budget of all rings together (default 64 MiB)
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.2
+ */
+public class HistoryStore {
+    public static final String BROADCAST_CONVERSATION = "*";
+    private static final String LOG_DIR = "data/messages";
+
+    static final int RING_DEPTH = Integer.getInteger("chatapp.history.depth", 200);
+    static final long RING_BYTES = Long.getLong("chatapp.history.ringBytes", 256L * 1024);
+    static final long MAX_BYTES = Long.getLong("chatapp.history.maxBytes", 64L * 1024 * 1024);
+    static final int SYNC_BATCH_MESSAGES = 100;
+    static final int SYNC_BATCH_CHARS = 64 * 1024;
+    static final long MAX_SYNC_CHARS = 1024L * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+
+    private static final MessageLog log = new MessageLog(LOG_DIR);
+    // Messages older than this were written by an earlier process and exist only on disk
+    private static final long startupSeq = log.getNextSeq();
+    // Access ordered, least recently used first; guards userConversations and ringsRemovedAt too
+    private static final LinkedHashMap<String, ConversationHistory> conversations = new LinkedHashMap<>(256, 0.75f, true);
+    private static final Map<String, Set<String>> userConversations = new HashMap<>();
+    // Per user, the next seq when one of their rings was last removed; later messages are all in rings
+    private static final Map<String, Long> ringsRemovedAt = new HashMap<>();
+    private static final AtomicLong totalBytes = new AtomicLong();
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "message-log-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        flusher.scheduleWithFixedDelay(log::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        LogCompactor.start(log);
+    }
+
+    /**
+     * Conversation key of a direct chat, independent of who sends.
+     */
+    public static String directConversation(String userA, String userB) {
+        return userA.compareTo(userB) <= 0 ? userA + ":" + userB : userB + ":" + userA;
+    }
+
+    /**
+     * Checks whether a user takes part in a conversation.
+     */
+    public static boolean isParticipant(String conversation, String username) {
+        if (BROADCAST_CONVERSATION.equals(conversation)) {
+            return true;
+        }
+        int separator = conversation.indexOf(':');
+        if (separator < 0) {
+            return false;
+        }
+        boolean first = username.length() == separator && conversation.startsWith(username);
+        boolean second = conversation.length() == separator + 1 + username.length()
+                && conversation.startsWith(username, separator + 1);
+        return first || second;
+    }
+
+    /**
+     * Stores a message frame in the log and in its conversation's ring and
+     * assigns its sequence number.
+     * @param json the serialized message without a seq property
+     * @return the stored entry, whose JSON carries the seq property
+     */
+    public static HistoryEntry record(String conversation, long timestamp, String json) {
+        while (true) {
+            ConversationHistory ring = ringOf(conversation);
+            HistoryEntry entry;
+            long delta;
+            // Ring and log are appended under the ring lock so ring order matches seq order
+            synchronized (ring) {
+                if (ring.isRetired()) {
+                    continue; // Evicted since the lookup
+                }
+                entry = log.append(timestamp, conversation, (seq, conversationSeq) -> withSeq(json, seq, conversationSeq));
+                delta = ring.append(entry);
+            }
+            if (totalBytes.addAndGet(delta) > MAX_BYTES) {
+                evictLeastRecentlyUsed();
+            }
+            return entry;
+        }
+    }
+
+    // Looks the ring up, which makes it the most recently used one, or creates it
+    private static ConversationHistory ringOf(String conversation) {
+        synchronized (conversations) {
+            ConversationHistory ring = conversations.get(conversation);
+            if (ring != null) {
+                return ring;
+            }
+            long coveredFrom = startupSeq;
+            if (!BROADCAST_CONVERSATION.equals(conversation)) {
+                int separator = conversation.indexOf(':');
+                for (String username : new String[] {conversation.substring(0, separator), conversation.substring(separator + 1)}) {
+                    userConversations.computeIfAbsent(username, key -> new HashSet<>()).add(conversation);
+                    // Earlier messages of the conversation may be in a removed ring
+                    coveredFrom = Math.max(coveredFrom, ringsRemovedAt.getOrDefault(username, 0L));
+                }
+            }
+            ring = new ConversationHistory(RING_DEPTH, RING_BYTES, coveredFrom);
+            conversations.put(conversation, ring);
+            totalBytes.addAndGet(overheadOf(conversation, ring));
+            return ring;
+        }
+    }
+
+    // The ring's array plus its entries in the conversation maps
+    private static long overheadOf(String conversation, ConversationHistory ring) {
+        return ring.estimateOverhead() + 128L + 2L * conversation.length();
+    }
+
+    // Splices the seq properties into an already serialized message object, which
+    // avoids serializing the message a second time while holding the log lock
+    static String withSeq(String json, long seq, long conversationSeq) {
+        return "{\"seq\":" + seq + ",\"cseq\":" + conversationSeq + (json.length() > 2 ? "," : "") + json.substring(1);
+    }
+
+    /**
+     * Replays all messages of the session's user with seq &gt; sinceSeq as
+     * sync-batch frames, followed by sync-complete:&lt;lastSeq&gt;, or by
+     * sync-partial:&lt;lastSeq&gt; if the reply was cut at MAX_SYNC_CHARS and the
+     * client should continue from there.
+     */
+    public static void sync(SessionState state, long sinceSeq) {
+        String username = state.getUsername();
+        long fromSeq = Math.max(sinceSeq + 1, 1);
+        SyncWriter writer = new SyncWriter(state, sinceSeq);
+
+        List<ConversationHistory> rings = new ArrayList<>();
+        // Everything from diskUntil on is in the rings; older messages come from disk
+        long diskUntil = startupSeq;
+        synchronized (conversations) {
+            ConversationHistory broadcast = conversations.get(BROADCAST_CONVERSATION);
+            if (broadcast != null) {
+                rings.add(broadcast);
+            }
+            for (String conversation : userConversations.getOrDefault(username, Set.of())) {
+                ConversationHistory ring = conversations.get(conversation);
+                if (ring != null) {
+                    rings.add(ring);
+                }
+            }
+            diskUntil = Math.max(diskUntil, ringsRemovedAt.getOrDefault(username, 0L));
+        }
+        // The rings are read first: one removed in the meantime reports how far it
+        // covered, so its messages are read from disk instead
+        List<HistoryEntry> recent = new ArrayList<>();
+        for (ConversationHistory ring : rings) {
+            diskUntil = Math.max(diskUntil, ring.collect(fromSeq, recent));
+        }
+        if (fromSeq < diskUntil) {
+            log.read(fromSeq, diskUntil, conversation -> isParticipant(conversation, username), writer::add);
+        }
+
+        if (!writer.isFull()) {
+            long ringFrom = diskUntil;
+            recent.removeIf(entry -> entry.getSeq() < ringFrom);
+            recent.sort(Comparator.comparingLong(HistoryEntry::getSeq));
+            for (HistoryEntry entry : recent) {
+                if (!writer.add(entry)) {
+                    break;
+                }
+            }
+        }
+        // Nothing relevant was missed below diskUntil, so the client may continue from there
+        writer.finish(diskUntil - 1);
+        if (!writer.syncedConversations.isEmpty()) {
+            MessageHandler.acknowledgeSynced(username, writer.syncedConversations);
+        }
+        System.out.println("[HISTORY] Synced " + writer.sent + " messages since " + sinceSeq + " to " + username);
+    }
+
+    /**
+     * Replays all messages of the session's user sent after the given time.
+     */
+    public static void syncSinceTimestamp(SessionState state, long timestamp) {
+        sync(state, log.findFirstSeqAfter(timestamp) - 1);
+    }
+
+    /**
+     * Reads a user's stored messages in seq order, straight from the log.
+     * @param username the user whose conversations are searched
+     * @param peer restricts the query to the direct chat with this user, or to the
+     *             broadcast channel if it is BROADCAST_CONVERSATION; null for all conversations
+     * @param afterSeq only messages with a larger seq are read
+     * @param fromTimestamp inclusive lower bound of the message time
+     * @param untilTimestamp exclusive upper bound of the message time
+     * @param visitor receives the messages; returns false to stop
+     */
+    public static void query(String username, String peer, long afterSeq, long fromTimestamp, long untilTimestamp,
+                             MessageLog.RecordVisitor visitor) {
+        Predicate<String> filter;
+        if (peer == null) {
+            filter = conversation -> isParticipant(conversation, username);
+        } else {
+            String conversation = BROADCAST_CONVERSATION.equals(peer) ? peer : directConversation(username, peer);
+            filter = conversation::equals;
+        }
+        log.query(afterSeq + 1, fromTimestamp, untilTimestamp, filter, visitor);
+    }
+
+    /**
+     * @return the sequence number of the most recent message
+     */
+    public static long getLatestSeq() {
+        return log.getNextSeq() - 1;
+    }
+
+    /**
+     * @return the size of the message log on disk in bytes
+     */
+    public static long getDiskBytes() {
+        return log.getDiskBytes();
+    }
+
+    /**
+     * @return the estimated heap size of all rings in bytes
+     */
+    public static long getMemoryBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Drops the messages the retention policy expired from the rings, so they
+     * are not replayed after they were removed from disk.
+     */
+    static void expire(RetentionPolicy policy, long now) {
+        synchronized (conversations) {
+            Iterator<Map.Entry<String, ConversationHistory>> rings = conversations.entrySet().iterator();
+            while (rings.hasNext()) {
+                Map.Entry<String, ConversationHistory> entry = rings.next();
+                long maxAge = policy.getMaxAge(entry.getKey());
+                if (maxAge != RetentionPolicy.KEEP_FOREVER) {
+                    totalBytes.addAndGet(-entry.getValue().expire(now - maxAge));
+                }
+                if (entry.getValue().size() == 0 && !BROADCAST_CONVERSATION.equals(entry.getKey())) {
+                    rings.remove();
+                    retire(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether any direct message of a user is still stored, in a ring or on disk.
+     */
+    static boolean hasConversations(String username) {
+        synchronized (conversations) {
+            for (String conversation : userConversations.getOrDefault(username, Set.of())) {
+                ConversationHistory ring = conversations.get(conversation);
+                if (ring != null && ring.size() > 0) {
+                    return true;
+                }
+            }
+        }
+        return log.hasConversation(conversation -> isDirectConversationOf(conversation, username));
+    }
+
+    /**
+     * Forgets the direct conversations of a removed user once none of their
+     * messages are stored: drops the empty rings and restarts the conversation
+     * seqs, so a later user of the same name starts from scratch.
+     */
+    static void forgetUser(String username) {
+        synchronized (conversations) {
+            for (String conversation : new ArrayList<>(userConversations.getOrDefault(username, Set.of()))) {
+                ConversationHistory ring = conversations.remove(conversation);
+                if (ring != null) {
+                    retire(conversation, ring);
+                }
+            }
+            ringsRemovedAt.remove(username);
+        }
+        log.forgetConversations(conversation -> isDirectConversationOf(conversation, username));
+    }
+
+    private static boolean isDirectConversationOf(String conversation, String username) {
+        return !BROADCAST_CONVERSATION.equals(conversation) && isParticipant(conversation, username);
+    }
+
+    // Removes the least recently used rings until the budget is met; their messages stay on disk.
+    // The broadcast ring is part of every sync, so it is emptied but kept.
+    private static void evictLeastRecentlyUsed() {
+        synchronized (conversations) {
+            Iterator<Map.Entry<String, ConversationHistory>> rings = conversations.entrySet().iterator();
+            while (totalBytes.get() > MAX_BYTES && rings.hasNext()) {
+                Map.Entry<String, ConversationHistory> entry = rings.next();
+                if (BROADCAST_CONVERSATION.equals(entry.getKey())) {
+                    ConversationHistory ring = entry.getValue();
+                    // Read under the ring lock, so no message is appended between reading and dropping
+                    synchronized (ring) {
+                        totalBytes.addAndGet(-ring.drop(log.getNextSeq()));
+                    }
+                } else {
+                    rings.remove();
+                    retire(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    // Frees a ring already taken out of the conversations map; called with the map locked
+    private static void retire(String conversation, ConversationHistory ring) {
+        synchronized (ring) {
+            totalBytes.addAndGet(-ring.retire(log.getNextSeq()) - overheadOf(conversation, ring));
+        }
+        // Read after retiring: every message of the conversation is below it, or in a new ring
+        long nextSeq = log.getNextSeq();
+        int separator = conversation.indexOf(':');
+        for (String username : new String[] {conversation.substring(0, separator), conversation.substring(separator + 1)}) {
+            Set<String> keys = userConversations.get(username);
+            if (keys != null) {
+                keys.remove(conversation);
+                if (keys.isEmpty()) {
+                    userConversations.remove(username);
+                }
+            }
+            ringsRemovedAt.merge(username, nextSeq, Math::max);
+        }
+    }
+
+    /**
+     * Packs replayed messages into JSON array frames.
+     */
+    private static final class SyncWriter {
+        private final SessionState state;
+        private final StringBuilder batch = new StringBuilder();
+        // Highest replayed conversation seq per direct conversation, for delivery acks
+        private final Map<String, Long> syncedConversations = new HashMap<>();
+        private int batchCount;
+        private long totalChars;
+        private long lastSeq;
+        private int sent;
+        private boolean full;
+
+        private SyncWriter(SessionState state, long sinceSeq) {
+            this.state = state;
+            this.lastSeq = sinceSeq;
+        }
+
+        private boolean add(HistoryEntry entry) {
+            if (full) {
+                return false;
+            }
+            if (totalChars + entry.getJson().length() > MAX_SYNC_CHARS && sent + batchCount > 0) {
+                full = true;
+                return false;
+            }
+            batch.append(batchCount == 0 ? "[" : ",").append(entry.getJson());
+            batchCount++;
+            totalChars += entry.getJson().length();
+            lastSeq = entry.getSeq();
+            if (!BROADCAST_CONVERSATION.equals(entry.getConversation())) {
+                syncedConversations.merge(entry.getConversation(), entry.getConversationSeq(), Math::max);
+            }
+            if (batchCount >= SYNC_BATCH_MESSAGES || batch.length() >= SYNC_BATCH_CHARS) {
+                flushBatch();
+            }
+            return true;
+        }
+
+        private boolean isFull() {
+            return full;
+        }
+
+        private void flushBatch() {
+            if (batchCount == 0) {
+                return;
+            }
+            state.reply("sync-batch:" + batch.append(']'));
+            sent += batchCount;
+            batch.setLength(0);
+            batchCount = 0;
+        }
+
+        private void finish(long completeUpTo) {
+            flushBatch();
+            state.reply(full ? "sync-partial:" + lastSeq : "sync-complete:" + Math.max(lastSeq, completeUpTo));
+        }
+    }
+}
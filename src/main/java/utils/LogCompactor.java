@@ -0,0 +1,290 @@
+package utils;
+
+import model.HistoryEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background thread that enforces the RetentionPolicy on the MessageLog.
+ * A sealed segment whose messages all expired is deleted. A segment of which
+ * at least half the time span expired for one of its conversations is
+ * rewritten without the expired messages and replaced in one step under its
+ * old name. The thread runs at minimum priority and limits its disk reads and
+ * writes to a fixed rate, so a compaction does not compete with message
+ * delivery for I/O. It also removes users who have not authenticated for a
+ * long time and, when it does, persists the last authentication times that
+ * changed since its previous run. The name of a removed
+ * user is released once retention has removed all their direct messages.
+ * Expired attachments and orphaned spool files are deleted as well.
+ *
+ * Configuration (system properties):
+ *   chatapp.retention.intervalMinutes  time between runs (default 10)
+ *   chatapp.retention.ioBytesPerSecond read and write budget of a run (default 4 MiB/s, 0 = unlimited)
+ *   chatapp.retention.staleUserDays    remove users not seen for this long (default 0 = never)
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class LogCompactor implements Runnable {
+    static final long INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(Long.getLong("chatapp.retention.intervalMinutes", 10));
+    static final long IO_BYTES_PER_SECOND = Long.getLong("chatapp.retention.ioBytesPerSecond", 4L * 1024 * 1024);
+    static final long STALE_USER_MILLIS = TimeUnit.DAYS.toMillis(Long.getLong("chatapp.retention.staleUserDays", 0));
+    private static final long INITIAL_DELAY_MILLIS = 60_000;
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private static final AtomicLong segmentsDeleted = new AtomicLong();
+    private static final AtomicLong segmentsRewritten = new AtomicLong();
+    private static final AtomicLong recordsExpired = new AtomicLong();
+    private static final AtomicLong bytesReclaimed = new AtomicLong();
+    private static final AtomicLong usersRemoved = new AtomicLong();
+    private static final AtomicLong lastRunTimestamp = new AtomicLong();
+    private static final AtomicLong lastRunMillis = new AtomicLong();
+
+    private final MessageLog log;
+    private final RetentionPolicy policy = new RetentionPolicy();
+    private long ioStart;
+    private long ioBytes;
+
+    LogCompactor(MessageLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Starts the compactor thread for a log.
+     */
+    static void start(MessageLog log) {
+        Thread thread = new Thread(new LogCompactor(log), "log-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(Math.min(INITIAL_DELAY_MILLIS, INTERVAL_MILLIS));
+            while (true) {
+                long start = System.currentTimeMillis();
+                try {
+                    compact(start);
+                } catch (RuntimeException e) {
+                    System.err.println("[COMPACTOR] Run failed: " + e.getMessage());
+                    e.printStackTrace();
+                }
+                lastRunTimestamp.set(start);
+                lastRunMillis.set(System.currentTimeMillis() - start);
+                Thread.sleep(INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One compaction run over all sealed segments.
+     */
+    void compact(long now) throws InterruptedException {
+        policy.reload();
+        deleteLeftovers();
+        if (policy.isActive()) {
+            HistoryStore.expire(policy, now);
+            for (SegmentIndex index : log.getSealedSegments()) {
+                try {
+                    if (isExpired(index, now)) {
+                        long freed = log.deleteSegment(index.getFirstSeq());
+                        segmentsDeleted.incrementAndGet();
+                        bytesReclaimed.addAndGet(freed);
+                        System.out.println("[COMPACTOR] Deleted expired segment " + index.getFirstSeq() + " (" + freed + " bytes)");
+                    } else if (isWorthRewriting(index, now)) {
+                        rewrite(index, now);
+                    }
+                } catch (IOException e) {
+                    System.err.println("[COMPACTOR] Failed to compact segment " + index.getFirstSeq() + ": " + e.getMessage());
+                }
+            }
+        }
+        if (STALE_USER_MILLIS > 0) {
+            int removed = UserDatabase.removeStaleUsers(now - STALE_USER_MILLIS, MessageHandler::isUserOnline);
+            usersRemoved.addAndGet(removed);
+            if (removed > 0) {
+                payForDatabaseWrite();
+            }
+            if (UserDatabase.saveLastSeen()) {
+                payForDatabaseWrite();
+            }
+        }
+        releaseUsernames();
+        AttachmentHandler.sweep();
+    }
+
+    // The user database is rewritten as a whole, so each write counts against the I/O budget
+    // like a segment rewrite: read once and written once, then the run waits until it is paid off
+    private void payForDatabaseWrite() throws InterruptedException {
+        ioStart = System.nanoTime();
+        ioBytes = 0;
+        try {
+            throttle(2 * Files.size(Paths.get(UserDatabase.USER_DATA_DIR, UserDatabase.USER_DATABASE_FILE)));
+        } catch (IOException e) {
+            // Nothing to pay for
+        }
+    }
+
+    // Removed users can't authenticate and can't be written to, so their stored messages only shrink
+    private void releaseUsernames() throws InterruptedException {
+        List<String> released = new ArrayList<>();
+        for (String username : UserDatabase.getRetiredUsernames()) {
+            if (!HistoryStore.hasConversations(username)) {
+                HistoryStore.forgetUser(username);
+                released.add(username);
+            }
+        }
+        if (!released.isEmpty()) {
+            UserDatabase.releaseUsernames(released);
+            payForDatabaseWrite();
+        }
+    }
+
+    // Every conversation of the segment expired its newest message
+    private boolean isExpired(SegmentIndex index, long now) {
+        for (String conversation : index.getConversations()) {
+            if (!policy.isExpired(conversation, index.getMaxTimestamp(), now)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Rewriting costs a full read and write of the segment, so it waits until
+    // a conversation expired at least half of the segment's time span
+    private boolean isWorthRewriting(SegmentIndex index, long now) {
+        long middle = index.getMinTimestamp() + (index.getMaxTimestamp() - index.getMinTimestamp()) / 2;
+        for (String conversation : index.getConversations()) {
+            if (policy.isExpired(conversation, middle, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Copies the unexpired records to a temp file, indexing them on the way, and
+    // swaps it in. Sealed segments are never appended to, so no lock is needed while copying.
+    private void rewrite(SegmentIndex index, long now) throws IOException, InterruptedException {
+        long firstSeq = index.getFirstSeq();
+        Path file = log.getSegmentFile(firstSeq);
+        if (file == null) {
+            return;
+        }
+        Path compacted = file.resolveSibling(file.getFileName() + COMPACT_SUFFIX);
+        SegmentIndex compactedIndex = new SegmentIndex(firstSeq);
+        long expired = 0;
+        long offset = 0;
+        ioStart = System.nanoTime();
+        ioBytes = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int length = line.getBytes(StandardCharsets.UTF_8).length + 1;
+                throttle(length);
+                HistoryEntry entry = MessageLog.parse(line);
+                if (entry == null || policy.isExpired(entry.getConversation(), entry.getTimestamp(), now)) {
+                    expired++;
+                    continue;
+                }
+                writer.write(line);
+                writer.write('\n');
+                compactedIndex.add(entry.getSeq(), entry.getTimestamp(), entry.getConversation(), offset);
+                offset += length;
+                throttle(length);
+            }
+        } catch (IOException | InterruptedException e) {
+            Files.deleteIfExists(compacted);
+            throw e;
+        }
+
+        if (expired == 0) {
+            Files.deleteIfExists(compacted);
+            return;
+        }
+        long freed;
+        if (compactedIndex.getLastSeq() < 0) {
+            Files.deleteIfExists(compacted);
+            freed = log.deleteSegment(firstSeq);
+            segmentsDeleted.incrementAndGet();
+        } else {
+            freed = log.replaceSegment(firstSeq, compacted, compactedIndex);
+            segmentsRewritten.incrementAndGet();
+        }
+        recordsExpired.addAndGet(expired);
+        bytesReclaimed.addAndGet(freed);
+        System.out.println("[COMPACTOR] Compacted segment " + firstSeq + ": " + expired + " records expired, " + freed + " bytes freed");
+    }
+
+    // Sleeps while the run is ahead of its I/O budget
+    private void throttle(long bytes) throws InterruptedException {
+        if (IO_BYTES_PER_SECOND <= 0) {
+            return;
+        }
+        ioBytes += bytes;
+        long aheadMillis = ioBytes * 1000 / IO_BYTES_PER_SECOND - (System.nanoTime() - ioStart) / 1_000_000;
+        if (aheadMillis >= 10) {
+            Thread.sleep(aheadMillis);
+        }
+    }
+
+    // Temp files of a run that was interrupted by a shutdown
+    private void deleteLeftovers() {
+        Path directory = log.getDirectory();
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + COMPACT_SUFFIX)) {
+            for (Path leftover : stream) {
+                Files.deleteIfExists(leftover);
+            }
+        } catch (IOException e) {
+            System.err.println("[COMPACTOR] Failed to remove leftover files: " + e.getMessage());
+        }
+    }
+
+    public static long getSegmentsDeleted() {
+        return segmentsDeleted.get();
+    }
+
+    public static long getSegmentsRewritten() {
+        return segmentsRewritten.get();
+    }
+
+    public static long getRecordsExpired() {
+        return recordsExpired.get();
+    }
+
+    public static long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    public static long getUsersRemoved() {
+        return usersRemoved.get();
+    }
+
+    /**
+     * @return the start time of the last completed run, 0 before the first one
+     */
+    public static long getLastRunTimestamp() {
+        return lastRunTimestamp.get();
+    }
+
+    public static long getLastRunMillis() {
+        return lastRunMillis.get();
+    }
+}
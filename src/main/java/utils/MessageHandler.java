@@ -3,110 +3,283 @@ package utils;
 import jakarta.websocket.Session;
 import jakarta.json.bind.Jsonb;
 import jakarta.json.bind.JsonbBuilder;
+import model.DeliveryReport;
+import model.HistoryEntry;
 import model.Message;
+import monitoring.RouteEvent;
+import monitoring.Trace;
 import utils.UserDatabase;
 
-import java.io.IOException;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 /*
  * Handles message processing and broadcasting in the chat application.
  * This class is responsible for receiving messages from clients,
  * processing them, and broadcasting them to all connected clients or specific users.
+ * All frames are written through the recipient's non-blocking OutboundQueue.
+ * Each routed message is timed stage by stage in a RouteEvent.
+ * Registering and removing a user's session publishes the user's presence
+ * to their watchers through the PresenceRegistry.
  * @author Max Staneker, Mia Schienagel
- * @version 0.2
+ * @version 0.4
  */
 
 public class MessageHandler {
 
     private static final Jsonb jsonb = JsonbBuilder.create();
-    private static final Map<String, Session> userSessions = new ConcurrentHashMap<>();
+    private static final Map<String, SessionState> userSessions = new ConcurrentHashMap<>();
+    // Upper bound of recipients in one multi-recipient envelope
+    static final int MAX_ENVELOPE_RECIPIENTS = 256;
 
     /**
      * Handlles direct messages to a specific user.
      * @param message the message to be sent
      * @param senderSession the session of the user sending the message
-     * @throws IOException if an error occurs while sending the message
      */
-    public static void handleDirectMessage(Message message, Session senderSession) throws IOException {
+    public static void handleDirectMessage(Message message, Session senderSession) {
+        RouteEvent event = beginRoute("direct", 1);
+        long stageStart = System.nanoTime();
         String recipient = message.getRecipient();
-        Session recipientSession = userSessions.get(recipient);
-
-        // Check if recipient is in Database
-        if (recipientSession == null) {
-            if (!UserDatabase.userExists(recipient)) {
-                senderSession.getBasicRemote().sendText("message-failed:User does not exist");
-                System.out.println("[MESSAGE HANDLER] Direct message failed - user does not exist: " + recipient);
-                return;
-            }
+        SessionState sender = SessionState.of(senderSession);
+        // Check if recipient is in Database; the name becomes part of the conversation key
+        if (!UserDatabase.userExists(recipient)) {
+            sender.reply("message-failed:User does not exist");
+            System.out.println("[MESSAGE HANDLER] Direct message failed - user does not exist: " + recipient);
+            return;
         }
+        SessionState recipientState = userSessions.get(recipient);
+        event.lookupTime = System.nanoTime() - stageStart;
             
-        // Create timestamped message
+        // Create timestamped message; stored under the authenticated name, not the one the client claims
+        String senderName = sender.getUsername();
         Message directMessage = new Message(
-            message.getSender(),
+            senderName,
             message.getContent(),
             message.getRecipient()
         );
         
-        String json = jsonb.toJson(directMessage);
+        // Stored first, so a recipient that is offline or too slow can sync it later.
+        // Storing assigns the sequence number carried by the delivered JSON.
+        stageStart = System.nanoTime();
+        String serialized = jsonb.toJson(directMessage);
+        event.serializeTime = System.nanoTime() - stageStart;
+        stageStart = System.nanoTime();
+        HistoryEntry entry = HistoryStore.record(HistoryStore.directConversation(senderName, recipient),
+                directMessage.getTimestamp(), serialized);
+        event.storeTime = System.nanoTime() - stageStart;
+        String json = entry.getJson();
         System.out.println("[MESSAGE HANDLER] SENDING DIRECT MESSAGE JSON: " + json);
         
+        if (sender.isCumulativeAcks() && sender.getRequestId() != null) {
+            sender.getAcks().accepted(sender.getRequestId(), entry.getConversationSeq());
+        }
+        
         // Send to recipient if online
-        if (recipientSession != null && recipientSession.isOpen()) {
-            recipientSession.getBasicRemote().sendText(json);
-            System.out.println("[MESSAGE HANDLER] Direct message sent to " + recipient + " from " + message.getSender());
+        if (recipientState != null && recipientState.getSession().isOpen()) {
+            stageStart = System.nanoTime();
+            boolean sent = recipientState.isCumulativeAcks()
+                    ? recipientState.getAcks().sendWith(json) : recipientState.send(json);
+            event.sendTime = System.nanoTime() - stageStart;
+            commitRoute(event);
+            if (!sent) {
+                queued(sender, recipient, entry);
+                System.out.println("[MESSAGE HANDLER] Recipient " + recipient + " is not draining its queue. Message kept for sync.");
+                return;
+            }
+            System.out.println("[MESSAGE HANDLER] Direct message sent to " + recipient + " from " + senderName);
             
             // Send delivery confirmation to sender
-            senderSession.getBasicRemote().sendText("message-delivered:" + recipient);
+            if (sender.isCumulativeAcks()) {
+                sender.getAcks().delivered(recipient, entry.getConversationSeq());
+            } else {
+                confirm(sender, "message-delivered:" + recipient, entry);
+            }
         } else {
-            // Recipient is offline
-            System.out.println("[MESSAGE HANDLER] Recipient " + recipient + " is offline. Message not delivered.");
-            System.out.println("[MESSAGE HANDLER] Currently online users: " + userSessions.keySet());
-            senderSession.getBasicRemote().sendText("message-failed:Recipient offline");
-            
-            // TODO: Store message for later delivery (optional)
-            // storeOfflineMessage(directMessage);
+            // Recipient is offline and receives the message on its next sync
+            commitRoute(event);
+            System.out.println("[MESSAGE HANDLER] Recipient " + recipient + " is offline. Message kept for sync.");
+            queued(sender, recipient, entry);
+        }
+    }
+
+    private static RouteEvent beginRoute(String kind, int recipients) {
+        RouteEvent event = new RouteEvent();
+        event.begin();
+        event.traceId = Trace.current();
+        event.kind = kind;
+        event.recipients = recipients;
+        return event;
+    }
+
+    private static void commitRoute(RouteEvent event) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /**
+     * Forwards a cumulative read receipt to the other participant of a conversation.
+     * @param readerSession the session of the user who read the messages
+     * @param peer the other participant
+     * @param conversationSeq everything up to this conversation seq has been read
+     */
+    public static void handleReadReceipt(Session readerSession, String peer, long conversationSeq) {
+        SessionState reader = SessionState.of(readerSession);
+        SessionState peerState = userSessions.get(peer);
+        if (peerState != null && peerState.isCumulativeAcks()) {
+            peerState.getAcks().read(reader.getUsername(), conversationSeq);
+        }
+    }
+
+    /**
+     * Tells the other participants that messages replayed by a sync have been delivered.
+     * @param username the user who synced
+     * @param conversationSeqs highest replayed conversation seq per direct conversation
+     */
+    public static void acknowledgeSynced(String username, Map<String, Long> conversationSeqs) {
+        for (Map.Entry<String, Long> entry : conversationSeqs.entrySet()) {
+            String conversation = entry.getKey();
+            int separator = conversation.indexOf(':');
+            String peer = conversation.startsWith(username + ":") ? conversation.substring(separator + 1) : conversation.substring(0, separator);
+            SessionState peerState = userSessions.get(peer);
+            if (peerState != null && peerState.isCumulativeAcks()) {
+                peerState.getAcks().synced(username, entry.getValue());
+            }
         }
     }
+
+    // The message waits for the recipient's next sync. A cumulative delivered mark
+    // must not pass it before then, or a later live delivery would cover it too.
+    private static void queued(SessionState sender, String recipient, HistoryEntry entry) {
+        if (sender.isCumulativeAcks()) {
+            sender.getAcks().undelivered(recipient, entry.getConversationSeq());
+        } else {
+            confirm(sender, "message-queued:" + recipient, entry);
+        }
+    }
+
+    // Legacy per-message confirmation; cumulative clients learn the outcome from their acks
+    private static void confirm(SessionState sender, String confirmation, HistoryEntry entry) {
+        if (!sender.isCumulativeAcks()) {
+            sender.reply(withSeq(sender, confirmation, entry));
+        }
+    }
+
+    // Clients that correlate requests also get the seq of their message in the confirmation
+    private static String withSeq(SessionState sender, String confirmation, HistoryEntry entry) {
+        return sender.getRequestId() != null ? confirmation + ":" + entry.getSeq() : confirmation;
+    }
     
     /**
-     * Handles broadcast messages to all connected users
+     * Splits a multi-recipient envelope into one direct message per recipient and
+     * answers the sender with a single aggregated delivery report.
+     * @param message the message carrying one ciphertext per recipient
+     * @param senderSession the session of the user sending the envelope
+     */
+    public static void handleEnvelopeMessage(Message message, Session senderSession) {
+        SessionState sender = SessionState.of(senderSession);
+        Map<String, String> envelopes = message.getEnvelopes();
+        if (envelopes.size() > MAX_ENVELOPE_RECIPIENTS) {
+            sender.reply("message-failed:Too many recipients");
+            System.out.println("[MESSAGE HANDLER] Envelope rejected - " + envelopes.size() + " recipients from " + sender.getUsername());
+            return;
+        }
+
+        String senderName = sender.getUsername();
+        RouteEvent event = beginRoute("envelope", envelopes.size());
+        long timestamp = System.currentTimeMillis();
+        DeliveryReport report = new DeliveryReport();
+        for (Map.Entry<String, String> part : envelopes.entrySet()) {
+            long stageStart = System.nanoTime();
+            String recipient = part.getKey();
+            if (!UserDatabase.userExists(recipient)) {
+                report.getUnknown().add(recipient);
+                event.lookupTime += System.nanoTime() - stageStart;
+                continue;
+            }
+            SessionState recipientState = userSessions.get(recipient);
+            event.lookupTime += System.nanoTime() - stageStart;
+
+            Message directMessage = new Message(senderName, part.getValue(), recipient);
+            directMessage.setTimestamp(timestamp);
+            stageStart = System.nanoTime();
+            String serialized = jsonb.toJson(directMessage);
+            event.serializeTime += System.nanoTime() - stageStart;
+            stageStart = System.nanoTime();
+            String json = HistoryStore.record(HistoryStore.directConversation(senderName, recipient),
+                    timestamp, serialized).getJson();
+            event.storeTime += System.nanoTime() - stageStart;
+            stageStart = System.nanoTime();
+            if (recipientState == null || !recipientState.getSession().isOpen()) {
+                report.getOffline().add(recipient);
+            } else if (recipientState.send(json)) {
+                report.getDelivered().add(recipient);
+            } else {
+                report.getBusy().add(recipient);
+            }
+            event.sendTime += System.nanoTime() - stageStart;
+        }
+        commitRoute(event);
+
+        sender.reply("delivery-report:" + jsonb.toJson(report));
+        System.out.println("[MESSAGE HANDLER] Envelope from " + senderName + " fanned out: " + report);
+    }
+
+    /**
+     * Handles broadcast messages to all connected users. The fan-out runs on
+     * the BroadcastEngine and is finished, with failures reported, before this returns.
      * @param message the message to broadcast
-     * @param sessions all active sessions
-     * @throws IOException if broadcasting fails
+     * @param senderSession the session of the user sending the message
      */
-    public static void handleBroadcastMessage(Message message, Set<Session> sessions) throws IOException {
+    public static void handleBroadcastMessage(Message message, Session senderSession) {
+        RouteEvent event = beginRoute("broadcast", BroadcastEngine.size());
         Message broadcast = new Message(
-            message.getSender(),
+            SessionState.of(senderSession).getUsername(),
             message.getContent(),
             System.currentTimeMillis()
         );
         
-        String json = jsonb.toJson(broadcast);
+        long stageStart = System.nanoTime();
+        String serialized = jsonb.toJson(broadcast);
+        event.serializeTime = System.nanoTime() - stageStart;
+        stageStart = System.nanoTime();
+        HistoryEntry entry = HistoryStore.record(HistoryStore.BROADCAST_CONVERSATION, broadcast.getTimestamp(), serialized);
+        event.storeTime = System.nanoTime() - stageStart;
+        String json = entry.getJson();
         System.out.println("[MESSAGE HANDLER] SENDING BROADCAST JSON: " + json);
         
-        for (Session session : sessions) {
-            if (session.isOpen()) {
-                try {
-                    session.getBasicRemote().sendText(json);
-                } catch (IOException e) {
-                    System.err.println("[MESSAGE HANDLER] Failed to send message to session: " + session.getId());
-                }
-            }
+        stageStart = System.nanoTime();
+        // Waits for the fan-out, so nothing this sender sends next can overtake the broadcast
+        BroadcastEngine.Result result = BroadcastEngine.broadcast(json).join();
+        if (result.getFailed() > 0) {
+            System.err.println("[MESSAGE HANDLER] Broadcast " + entry.getSeq() + " failed for " + result.getFailed()
+                    + " of " + (result.getDelivered() + result.getFailed()) + " sessions");
         }
+        event.sendTime = System.nanoTime() - stageStart;
+        commitRoute(event);
         System.out.println("[MESSAGE_HANDLER] Broadcasting message: " + broadcast.getContent() + " from " + broadcast.getSender());
     }
     
     /**
-     * Registers a user session for direct messaging
-     * @param username the username
-     * @param session the user's session
+     * Registers a user session for direct messaging under the user it authenticated
+     * as; called once per successful authentication
+     * @param session the user's authenticated session
      */
-    public static void registerUserSession(String username, Session session) {
-        userSessions.put(username, session);
+    public static void registerUserSession(Session session) {
+        SessionState state = SessionState.of(session);
+        String username = state.getUsername();
+        if (username == null || userSessions.put(username, state) == state) {
+            return; // Not authenticated, or already registered
+        }
+        // A session is routed under one name only
+        String previous = state.setRoutedUsername(username);
+        if (previous != null && !previous.equals(username)) {
+            userSessions.remove(previous, state);
+            PresenceRegistry.publish(previous, userSessions::containsKey);
+        }
+        PresenceRegistry.publish(username, userSessions::containsKey);
         System.out.println("[MESSAGE HANDLER] User session registered: " + username + " (Session: " + session.getId() + ")");
         System.out.println("[MESSAGE HANDLER] Total online users: " + userSessions.keySet());
     }
@@ -116,48 +289,12 @@ public class MessageHandler {
      * @param session the session to remove
      */
     public static void removeUserSession(Session session) {
-        userSessions.entrySet().removeIf(entry -> entry.getValue().equals(session));
-        System.out.println("[MESSAGE HANDLER] User session removed for session: " + session.getId());
-    }
-    
-    /**
-     * Sends list of online users to all connected clients
-     * @param sessions all active sessions
-     */
-    public static void broadcastOnlineUsers(Set<Session> sessions) {
-        try {
-            Set<String> onlineUsers =  userSessions.keySet();
-            String userListJson = jsonb.toJson(onlineUsers);
-            String message = "online-users:" + userListJson;
-            
-            for (Session session : sessions) {
-                if (session.isOpen()) {
-                    session.getBasicRemote().sendText(message);
-                }
-            }
-            System.out.println("[MESSAGE HANDLER] Online users list broadcasted: " + onlineUsers);
-        } catch (IOException e) {
-            System.err.println("[MESSAGE HANDLER] Failed to broadcast online users: " + e.getMessage());
-        }
-    }
-    
-    /**
-     * Sends list of online users to a specific session
-     * @param session the session to send the list to
-     */
-    public static void sendOnlineUsersToSession(Session session) {
-        try {
-            Set<String> onlineUsers = userSessions.keySet();
-            String userListJson = jsonb.toJson(onlineUsers);
-            String message = "online-users:" + userListJson;
-            
-            if (session.isOpen()) {
-                session.getBasicRemote().sendText(message);
-                System.out.println("[MESSAGE HANDLER] Online users list sent to session " + session.getId() + ": " + onlineUsers);
-            }
-        } catch (IOException e) {
-            System.err.println("[MESSAGE HANDLER] Failed to send online users to session: " + e.getMessage());
+        SessionState state = SessionState.of(session);
+        String username = state.getRoutedUsername();
+        if (username != null && userSessions.remove(username, state)) {
+            PresenceRegistry.publish(username, userSessions::containsKey);
         }
+        System.out.println("[MESSAGE HANDLER] User session removed for session: " + session.getId());
     }
     
     /**
@@ -166,7 +303,8 @@ public class MessageHandler {
      * @return the session or null if not found
      */
     public static Session getUserSession(String username) {
-        return userSessions.get(username);
+        SessionState state = userSessions.get(username);
+        return state != null ? state.getSession() : null;
     }
     
     /**
@@ -175,7 +313,7 @@ public class MessageHandler {
      * @return true if user is online, false otherwise
      */
     public static boolean isUserOnline(String username) {
-        Session session = userSessions.get(username);
-        return session != null && session.isOpen();
+        SessionState state = userSessions.get(username);
+        return state != null && state.getSession().isOpen();
     }
 }
@@ -0,0 +1,588 @@
+package utils;
+
+import model.HistoryEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/*
+ * Append-only, segmented log of every routed message. Each line holds
+ *   seq \t timestamp \t conversation \t conversationSeq \t json
+ * The conversation is written with {@link #escape}, so no name can add fields
+ * or lines; the JSON never contains raw control characters. A segment file is
+ * named after the sequence number of its first record.
+ * Sequence numbers are global, conversation sequence numbers count the
+ * messages of one conversation; both are strictly increasing across restarts.
+ * When a segment is rolled, the conversation counters are checkpointed so a
+ * restart only rescans the segments written after the checkpoint, and the
+ * segment's SegmentIndex is written next to it for queries.
+ * Writes are buffered and flushed periodically by HistoryStore.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.4
+ */
+public class MessageLog {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String CHECKPOINT_FILE = "conversation-seqs.checkpoint";
+    static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    private final Path directory;
+    private final TreeMap<Long, Path> segments = new TreeMap<>(); // first seq -> file
+    private final TreeMap<Long, SegmentIndex> indexes = new TreeMap<>(); // first seq -> index
+    private final Map<String, Long> conversationSeqs = new HashMap<>(); // conversation -> last conversation seq
+    private long nextSeq = 1;
+    private OutputStream out;
+    private long segmentSize;
+
+    /**
+     * Produces the JSON of a record once its sequence numbers are assigned.
+     */
+    public interface Renderer {
+        String render(long seq, long conversationSeq);
+    }
+
+    /**
+     * Visitor for records read back from disk.
+     */
+    public interface RecordVisitor {
+        /**
+         * @return false to stop reading
+         */
+        boolean visit(HistoryEntry entry);
+    }
+
+    public MessageLog(String directory) {
+        this.directory = Paths.get(directory);
+        recover();
+    }
+
+    /**
+     * Appends a record and assigns its global and conversation sequence numbers.
+     * @param renderer produces the record's JSON for the assigned sequence numbers
+     * @return the appended record
+     */
+    public synchronized HistoryEntry append(long timestamp, String conversation, Renderer renderer) {
+        long seq = nextSeq++;
+        long conversationSeq = conversationSeqs.merge(conversation, 1L, Long::sum);
+        String json = renderer.render(seq, conversationSeq);
+        try {
+            if (out == null || segmentSize >= SEGMENT_BYTES) {
+                rollSegment(seq);
+            }
+            byte[] line = (seq + "\t" + timestamp + "\t" + escape(conversation) + "\t" + conversationSeq + "\t" + json + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            out.write(line);
+            indexes.lastEntry().getValue().add(seq, timestamp, conversation, segmentSize);
+            segmentSize += line.length;
+        } catch (IOException e) {
+            // The message is still delivered; only its replay from disk is lost
+            System.err.println("[MESSAGE LOG] Failed to append record " + seq + ": " + e.getMessage());
+        }
+        return new HistoryEntry(seq, timestamp, conversation, conversationSeq, json);
+    }
+
+    /**
+     * @return the sequence number the next record will get
+     */
+    public synchronized long getNextSeq() {
+        return nextSeq;
+    }
+
+    public synchronized void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("[MESSAGE LOG] Failed to flush: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads records with fromSeq &lt;= seq &lt; untilSeq in order, starting at the
+     * segment that contains fromSeq.
+     * @param conversationFilter only records of matching conversations are visited
+     */
+    public void read(long fromSeq, long untilSeq, Predicate<String> conversationFilter, RecordVisitor visitor) {
+        Map<Path, FileChannel> channels = new LinkedHashMap<>();
+        synchronized (this) {
+            flush();
+            Long start = segments.floorKey(fromSeq);
+            for (Path file : (start != null ? segments.tailMap(start, true) : segments).values()) {
+                open(channels, file, 0);
+            }
+        }
+        try {
+            for (Map.Entry<Path, FileChannel> segment : channels.entrySet()) {
+                try {
+                    BufferedReader reader = reader(segment.getValue());
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        HistoryEntry entry = parse(line);
+                        if (entry == null || entry.getSeq() < fromSeq) {
+                            continue;
+                        }
+                        if (entry.getSeq() >= untilSeq) {
+                            return;
+                        }
+                        if (conversationFilter.test(entry.getConversation()) && !visitor.visit(entry)) {
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("[MESSAGE LOG] Failed to read " + segment.getKey() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            closeAll(channels);
+        }
+    }
+
+    /**
+     * Reads the records with seq &gt;= fromSeq and fromTimestamp &lt;= timestamp &lt;
+     * untilTimestamp in seq order. Segments that cannot match are skipped by their
+     * index, and a matching segment is read from the last index checkpoint before
+     * the first record needed.
+     * @param conversationFilter only records of matching conversations are visited
+     */
+    public void query(long fromSeq, long fromTimestamp, long untilTimestamp,
+                      Predicate<String> conversationFilter, RecordVisitor visitor) {
+        Map<Path, FileChannel> channels = new LinkedHashMap<>();
+        synchronized (this) {
+            flush();
+            Long start = indexes.floorKey(fromSeq);
+            for (Map.Entry<Long, SegmentIndex> entry : (start != null ? indexes.tailMap(start, true) : indexes).entrySet()) {
+                SegmentIndex index = entry.getValue();
+                if (index.mayContain(fromSeq, fromTimestamp, untilTimestamp, conversationFilter)) {
+                    open(channels, segments.get(entry.getKey()), index.startOffset(fromSeq, fromTimestamp));
+                }
+            }
+        }
+        try {
+            for (Map.Entry<Path, FileChannel> segment : channels.entrySet()) {
+                try {
+                    BufferedReader reader = reader(segment.getValue());
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        HistoryEntry entry = parse(line);
+                        if (entry == null || entry.getSeq() < fromSeq
+                                || entry.getTimestamp() < fromTimestamp || entry.getTimestamp() >= untilTimestamp
+                                || !conversationFilter.test(entry.getConversation())) {
+                            continue;
+                        }
+                        if (!visitor.visit(entry)) {
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("[MESSAGE LOG] Failed to read " + segment.getKey() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            closeAll(channels);
+        }
+    }
+
+    // Segments are opened under the lock; an open channel keeps reading the file
+    // it was opened on even if compaction replaces or deletes the segment meanwhile
+    private static void open(Map<Path, FileChannel> channels, Path file, long offset) {
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            channel.position(offset);
+            channels.put(file, channel);
+        } catch (IOException e) {
+            System.err.println("[MESSAGE LOG] Failed to open " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static BufferedReader reader(FileChannel channel) {
+        return new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+    }
+
+    private static void closeAll(Map<Path, FileChannel> channels) {
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to read from it
+            }
+        }
+    }
+
+    /**
+     * The newest segment is never included, even before it is written to again
+     * after a restart: recovery takes the next sequence number from it.
+     * @return the indexes of all segments that are no longer written to, oldest first
+     */
+    synchronized List<SegmentIndex> getSealedSegments() {
+        List<SegmentIndex> sealed = new ArrayList<>(indexes.values());
+        if (!sealed.isEmpty()) {
+            sealed.remove(sealed.size() - 1);
+        }
+        return sealed;
+    }
+
+    /**
+     * @return true if any segment holds records of a conversation the filter accepts
+     */
+    synchronized boolean hasConversation(Predicate<String> conversationFilter) {
+        for (SegmentIndex index : indexes.values()) {
+            for (String conversation : index.getConversations()) {
+                if (conversationFilter.test(conversation)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restarts the conversation seqs of the conversations the filter accepts.
+     * Only for conversations without records left, whose counters would otherwise
+     * be kept forever.
+     */
+    synchronized void forgetConversations(Predicate<String> conversationFilter) {
+        conversationSeqs.keySet().removeIf(conversationFilter);
+    }
+
+    synchronized Path getSegmentFile(long firstSeq) {
+        return segments.get(firstSeq);
+    }
+
+    /**
+     * @return the total size of all segment files in bytes
+     */
+    public long getDiskBytes() {
+        List<Path> files;
+        synchronized (this) {
+            files = new ArrayList<>(segments.values());
+        }
+        long bytes = 0;
+        for (Path file : files) {
+            bytes += Math.max(0, sizeOf(file));
+        }
+        return bytes;
+    }
+
+    /**
+     * Deletes a sealed segment and its index. Readers that already opened it finish reading.
+     * @return the number of bytes freed
+     */
+    synchronized long deleteSegment(long firstSeq) throws IOException {
+        Path file = segments.remove(firstSeq);
+        indexes.remove(firstSeq);
+        if (file == null) {
+            return 0;
+        }
+        long bytes = sizeOf(file);
+        Files.deleteIfExists(directory.resolve(indexName(firstSeq)));
+        Files.deleteIfExists(file);
+        return Math.max(0, bytes);
+    }
+
+    /**
+     * Replaces a sealed segment with a compacted copy of it. The copy is moved
+     * over the segment in one step and keeps its name, so a crash leaves either
+     * the old or the new segment; an index that does not match the file is
+     * rebuilt on the next start.
+     * @return the number of bytes freed
+     */
+    synchronized long replaceSegment(long firstSeq, Path compacted, SegmentIndex index) throws IOException {
+        Path file = segments.get(firstSeq);
+        if (file == null) {
+            Files.deleteIfExists(compacted);
+            return 0;
+        }
+        long before = sizeOf(file);
+        long after = sizeOf(compacted);
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexes.put(firstSeq, index);
+        writeIndex(firstSeq, index, after);
+        return Math.max(0, before - after);
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Finds the first record written after the given time.
+     * @return its sequence number, or the next sequence number if there is none
+     */
+    public long findFirstSeqAfter(long timestamp) {
+        List<Map.Entry<Long, Path>> files;
+        synchronized (this) {
+            flush();
+            files = new ArrayList<>(segments.entrySet());
+        }
+        // Start at the last segment whose first record is not newer than the timestamp
+        int start = 0;
+        for (int i = files.size() - 1; i > 0; i--) {
+            HistoryEntry first = readFirst(files.get(i).getValue());
+            if (first != null && first.getTimestamp() <= timestamp) {
+                start = i;
+                break;
+            }
+        }
+        long[] found = {-1};
+        if (!files.isEmpty()) {
+            read(files.get(start).getKey(), Long.MAX_VALUE, conversation -> true, entry -> {
+                if (entry.getTimestamp() > timestamp) {
+                    found[0] = entry.getSeq();
+                    return false;
+                }
+                return true;
+            });
+        }
+        return found[0] >= 0 ? found[0] : getNextSeq();
+    }
+
+    static HistoryEntry parse(String line) {
+        int first = line.indexOf('\t');
+        int second = line.indexOf('\t', first + 1);
+        int third = line.indexOf('\t', second + 1);
+        int fourth = line.indexOf('\t', third + 1);
+        if (first < 0 || second < 0 || third < 0 || fourth < 0) {
+            return null;
+        }
+        try {
+            return new HistoryEntry(Long.parseLong(line, 0, first, 10),
+                    Long.parseLong(line, first + 1, second, 10),
+                    unescape(line.substring(second + 1, third)),
+                    Long.parseLong(line, third + 1, fourth, 10),
+                    line.substring(fourth + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Escapes backslashes, tabs and line breaks, so a conversation name stays one
+     * field of one line in the log, its index and the checkpoint.
+     */
+    static String escape(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' || c == '\t' || c == '\n' || c == '\r') {
+                return escapeFrom(field, i);
+            }
+        }
+        return field; // Nothing to escape, the common case
+    }
+
+    private static String escapeFrom(String field, int start) {
+        StringBuilder escaped = new StringBuilder(field.length() + 8).append(field, 0, start);
+        for (int i = start; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\' -> escaped.append("\\\\");
+                case '\t' -> escaped.append("\\t");
+                case '\n' -> escaped.append("\\n");
+                case '\r' -> escaped.append("\\r");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Reverses {@link #escape}.
+     */
+    static String unescape(String field) {
+        int backslash = field.indexOf('\\');
+        if (backslash < 0) {
+            return field;
+        }
+        StringBuilder text = new StringBuilder(field.length()).append(field, 0, backslash);
+        for (int i = backslash; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                switch (next) {
+                    case 't' -> text.append('\t');
+                    case 'n' -> text.append('\n');
+                    case 'r' -> text.append('\r');
+                    case '\\' -> text.append('\\');
+                    default -> text.append(c).append(next);
+                }
+            } else {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+
+    private static HistoryEntry readFirst(Path file) {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            return line != null ? parse(line) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void rollSegment(long firstSeq) throws IOException {
+        if (out != null) {
+            out.close();
+            Map.Entry<Long, SegmentIndex> sealed = indexes.lastEntry();
+            writeIndex(sealed.getKey(), sealed.getValue(), segmentSize);
+        }
+        Files.createDirectories(directory);
+        writeCheckpoint(firstSeq);
+        Path file = directory.resolve(segmentName(firstSeq));
+        out = new BufferedOutputStream(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+        segmentSize = Files.size(file);
+        segments.put(firstSeq, file);
+        indexes.put(firstSeq, new SegmentIndex(firstSeq));
+    }
+
+    static String segmentName(long firstSeq) {
+        return SEGMENT_PREFIX + String.format("%020d", firstSeq) + SEGMENT_SUFFIX;
+    }
+
+    static String indexName(long firstSeq) {
+        return SEGMENT_PREFIX + String.format("%020d", firstSeq) + INDEX_SUFFIX;
+    }
+
+    // A missing index only costs a rescan of the segment on the next start
+    private void writeIndex(long firstSeq, SegmentIndex index, long segmentBytes) {
+        try {
+            index.write(directory.resolve(indexName(firstSeq)), segmentBytes);
+        } catch (IOException e) {
+            System.err.println("[MESSAGE LOG] Failed to write index of segment " + firstSeq + ": " + e.getMessage());
+        }
+    }
+
+    // Counters as of the start of the new segment; written to a temp file and moved so a crash never leaves half a checkpoint
+    private void writeCheckpoint(long firstSeq) throws IOException {
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(Long.toString(firstSeq));
+            writer.newLine();
+            for (Map.Entry<String, Long> entry : conversationSeqs.entrySet()) {
+                writer.write(escape(entry.getKey()) + "\t" + entry.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the last checkpoint and returns the first seq it does not cover
+    private long readCheckpoint() {
+        Path file = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 1;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            long coveredUntil = Long.parseLong(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                conversationSeqs.put(unescape(line.substring(0, tab)), Long.parseLong(line.substring(tab + 1)));
+            }
+            return coveredUntil;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[MESSAGE LOG] Ignoring unreadable checkpoint: " + e.getMessage());
+            conversationSeqs.clear();
+            return 1;
+        }
+    }
+
+    // Rebuilds the segment list and indexes, the next sequence number and the conversation counters from disk.
+    // Segments of earlier runs are never appended to again, so each gets its index written once.
+    private void recover() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    long firstSeq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(firstSeq, file);
+                } catch (NumberFormatException e) {
+                    System.err.println("[MESSAGE LOG] Ignoring unexpected file: " + file);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[MESSAGE LOG] Failed to list segments: " + e.getMessage());
+            return;
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        long coveredUntil = readCheckpoint();
+        long lastSeq = segments.lastKey() - 1;
+        for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+            long firstSeq = segment.getKey();
+            Long nextFirstSeq = segments.higherKey(firstSeq);
+            // Only segments that may hold records after the checkpoint are needed for the counters
+            boolean uncovered = nextFirstSeq == null || nextFirstSeq > coveredUntil;
+            long segmentBytes = sizeOf(segment.getValue());
+            SegmentIndex index = SegmentIndex.read(directory.resolve(indexName(firstSeq)), segmentBytes);
+            if (index == null || uncovered) {
+                SegmentIndex built = scanSegment(segment.getValue(), firstSeq, coveredUntil);
+                if (index == null) {
+                    index = built;
+                    writeIndex(firstSeq, index, segmentBytes);
+                }
+            }
+            indexes.put(firstSeq, index);
+            lastSeq = Math.max(lastSeq, index.getLastSeq());
+        }
+        nextSeq = lastSeq + 1;
+        System.out.println("[MESSAGE LOG] Recovered " + segments.size() + " segments, next sequence " + nextSeq);
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Builds a segment's index and restores the counters of its records from coveredUntil on
+    private SegmentIndex scanSegment(Path file, long firstSeq, long coveredUntil) {
+        SegmentIndex index = new SegmentIndex(firstSeq);
+        long offset = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                HistoryEntry entry = parse(line);
+                if (entry != null) {
+                    index.add(entry.getSeq(), entry.getTimestamp(), entry.getConversation(), offset);
+                    if (entry.getSeq() >= coveredUntil) {
+                        conversationSeqs.merge(entry.getConversation(), entry.getConversationSeq(), Math::max);
+                    }
+                }
+                offset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+            }
+        } catch (IOException e) {
+            System.err.println("[MESSAGE LOG] Failed to recover " + file + ": " + e.getMessage());
+        }
+        return index;
+    }
+}
@@ -0,0 +1,278 @@
+package utils;
+
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import monitoring.SendEvent;
+import monitoring.Trace;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking outbound frame queue for a single WebSocket session.
+ * Frames are written with the container's async remote one at a time, so a
+ * slow client never blocks the thread that produced the frame.
+ * Frames go into one of two lanes, each ordered and with its own size budget:
+ * the control lane for handshake, key and error replies and the bulk lane for
+ * chat, history and attachment traffic. Control frames are written first; only
+ * after CONTROL_BURST control frames in a row does one waiting bulk frame go
+ * ahead, so a saturated bulk lane delays a login by at most the frame in flight.
+ * While a JFR recording has SendEvent enabled, each frame is timed from
+ * enqueue to write completion.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.3
+ */
+public class OutboundQueue implements SendHandler {
+    // Upper bound of queued characters/bytes before new frames are rejected (slow consumer)
+    static final long MAX_QUEUED_SIZE = 4L * 1024 * 1024;
+    // Control frames are small; a separate budget keeps them from being rejected while the bulk lane is full
+    static final long MAX_CONTROL_SIZE = 256L * 1024;
+    // Control frames written in a row before a waiting bulk frame gets a turn
+    static final int CONTROL_BURST = 8;
+
+    private final Session session;
+    private final Queue<Frame> control = new ConcurrentLinkedQueue<>();
+    private final Queue<Frame> bulk = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong queuedControlSize = new AtomicLong();
+    private final AtomicLong queuedSize = new AtomicLong();
+    private volatile boolean inFlight;
+    private volatile Frame current;
+    private int controlStreak; // Only touched by the thread that owns the drain loop
+
+    public OutboundQueue(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Queues a text frame for delivery in the bulk lane.
+     * @param text the frame to send
+     * @return false if the session is closed or its queue is full
+     */
+    public boolean enqueue(String text) {
+        return offer(new Frame(text, null, text.length(), null), false);
+    }
+
+    /**
+     * Queues a text frame for delivery in the control lane, ahead of bulk traffic.
+     * @param text the frame to send
+     * @return false if the session is closed or its control lane is full
+     */
+    public boolean enqueueControl(String text) {
+        return offer(new Frame(text, null, text.length(), null), true);
+    }
+
+    /**
+     * Queues a binary frame for delivery. The buffer must not be modified until
+     * the callback has run.
+     * @param data the frame payload
+     * @param onSent called once the frame was written or failed, may be null
+     * @return false if the session is closed or its queue is full
+     */
+    public boolean enqueueBinary(ByteBuffer data, SendHandler onSent) {
+        return offer(new Frame(null, data, data.remaining(), onSent), false);
+    }
+
+    /**
+     * Queues a binary frame in the control lane, such as a compressed control reply.
+     * @param data the frame payload, not modified afterwards
+     * @return false if the session is closed or its control lane is full
+     */
+    public boolean enqueueControlBinary(ByteBuffer data) {
+        return offer(new Frame(null, data, data.remaining(), null), true);
+    }
+
+    /**
+     * @return number of bulk characters/bytes waiting to be written
+     */
+    public long getQueuedSize() {
+        return queuedSize.get();
+    }
+
+    /**
+     * @return number of control characters/bytes waiting to be written
+     */
+    public long getQueuedControlSize() {
+        return queuedControlSize.get();
+    }
+
+    /**
+     * Drops all frames that have not been handed to the container yet.
+     */
+    public void clear() {
+        clear(control, queuedControlSize);
+        clear(bulk, queuedSize);
+    }
+
+    /**
+     * Removes the bulk frames that have not been handed to the container yet and
+     * returns them as text, so a restarting server can pass them on to its
+     * successor. Compressed frames are inflated again, attachment chunks are dropped.
+     * Control frames belong to this connection and stay queued.
+     */
+    public List<String> takePendingText() {
+        List<String> pending = new ArrayList<>();
+        Frame frame;
+        while ((frame = take(bulk, queuedSize)) != null) {
+            String text = frame.text != null ? frame.text : FrameCompressor.inflateFrame(frame.binary);
+            if (text != null) {
+                pending.add(text);
+            }
+            frame.complete(new SendResult(session, new IllegalStateException("Handed over")));
+        }
+        return pending;
+    }
+
+    private void clear(Queue<Frame> lane, AtomicLong laneSize) {
+        Frame dropped;
+        while ((dropped = lane.poll()) != null) {
+            laneSize.addAndGet(-dropped.size);
+            dropped.complete(new SendResult(session, new IllegalStateException("Session closed")));
+        }
+    }
+
+    private boolean offer(Frame frame, boolean isControl) {
+        if (!session.isOpen()) {
+            return false;
+        }
+        AtomicLong laneSize = isControl ? queuedControlSize : queuedSize;
+        long queuedAhead = laneSize.addAndGet(frame.size) - frame.size;
+        if (queuedAhead + frame.size > (isControl ? MAX_CONTROL_SIZE : MAX_QUEUED_SIZE)) {
+            laneSize.addAndGet(-frame.size);
+            System.err.println("[OUTBOUND] " + (isControl ? "Control" : "Bulk") + " lane full, dropping frame for session: " + session.getId());
+            return false;
+        }
+        if (SendEvent.TYPE.isEnabled()) {
+            frame.trace(session.getId(), queuedAhead);
+        }
+        (isControl ? control : bulk).add(frame);
+        drain();
+        return true;
+    }
+
+    // Writes the next frame if none is in flight. Completions that run inline on
+    // the calling thread only bump the counter, so the loop never recurses.
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            if (!inFlight) {
+                Frame next = poll();
+                if (next != null) {
+                    next.handedOver();
+                    inFlight = true;
+                    current = next;
+                    write(next);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    // Strict priority for the control lane, except that a waiting bulk frame is
+    // never passed over more than CONTROL_BURST times
+    private Frame poll() {
+        boolean bulkTurn = controlStreak >= CONTROL_BURST && !bulk.isEmpty();
+        Frame next = bulkTurn ? null : take(control, queuedControlSize);
+        if (next != null) {
+            controlStreak++;
+            return next;
+        }
+        controlStreak = 0;
+        next = take(bulk, queuedSize);
+        // The bulk frame may have been dropped by clear() in the meantime
+        return next != null ? next : take(control, queuedControlSize);
+    }
+
+    private static Frame take(Queue<Frame> lane, AtomicLong laneSize) {
+        Frame next = lane.poll();
+        if (next != null) {
+            laneSize.addAndGet(-next.size);
+        }
+        return next;
+    }
+
+    private void write(Frame frame) {
+        try {
+            if (frame.text != null) {
+                session.getAsyncRemote().sendText(frame.text, this);
+            } else {
+                session.getAsyncRemote().sendBinary(frame.binary, this);
+            }
+        } catch (RuntimeException e) {
+            // Session was closed underneath us
+            System.err.println("[OUTBOUND] Failed to send to session " + session.getId() + ": " + e.getMessage());
+            current = null;
+            frame.complete(new SendResult(session, e));
+            clear();
+            inFlight = false;
+        }
+    }
+
+    @Override
+    public void onResult(SendResult result) {
+        if (!result.isOK()) {
+            System.err.println("[OUTBOUND] Send failed for session " + session.getId() + ": " + result.getException());
+        }
+        Frame sent = current;
+        current = null;
+        inFlight = false;
+        if (sent != null) {
+            sent.complete(result);
+        }
+        drain();
+    }
+
+    private static final class Frame {
+        private final String text;
+        private final ByteBuffer binary;
+        private final long size;
+        private final SendHandler onSent;
+        private SendEvent event; // Only set while a recording has SendEvent enabled
+
+        private Frame(String text, ByteBuffer binary, long size, SendHandler onSent) {
+            this.text = text;
+            this.binary = binary;
+            this.size = size;
+            this.onSent = onSent;
+        }
+
+        private void trace(String sessionId, long queuedAhead) {
+            event = new SendEvent();
+            event.begin();
+            event.traceId = Trace.current();
+            event.sessionId = sessionId;
+            event.binary = binary != null;
+            event.size = size;
+            event.queuedAhead = queuedAhead;
+            event.queueTime = System.nanoTime();
+        }
+
+        private void handedOver() {
+            if (event != null) {
+                event.queueTime = System.nanoTime() - event.queueTime;
+            }
+        }
+
+        private void complete(SendResult result) {
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.succeeded = result.isOK();
+                    event.commit();
+                }
+            }
+            if (onSent != null) {
+                onSent.onResult(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package utils;
+
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+/**
+ * Contact-scoped presence. A session subscribes to the users it cares about
+ * and only gets join and leave events of those users, as
+ *   presence:{"online":[...],"offline":[...]}
+ * A reverse index from every user to the sessions watching them keeps the cost
+ * of an event proportional to its watchers, so presence traffic grows with the
+ * number of contact edges rather than with the square of the online users.
+ * The sorted set of online users serves the paginated online list.
+ * While the server drains, events are no longer sent: every session is about
+ * to be closed, and the watchers learn the state again after reconnecting.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.2
+ */
+public class PresenceRegistry {
+    // Upper bound of users one session may watch
+    static final int MAX_WATCHED = 1000;
+
+    private static final Jsonb jsonb = JsonbBuilder.create();
+    private static final Map<String, Set<SessionState>> watchers = new ConcurrentHashMap<>(); // watched user -> sessions
+    private static final NavigableSet<String> onlineUsers = new ConcurrentSkipListSet<>();
+    private static volatile boolean suspended;
+
+    /**
+     * Subscribes a session to the presence of users and replies with their current state.
+     * @return false if the session would watch more than MAX_WATCHED users
+     */
+    public static boolean watch(SessionState state, Collection<String> usernames) {
+        Set<String> watching = state.getWatching();
+        synchronized (watching) {
+            long added = usernames.stream().filter(username -> !watching.contains(username)).distinct().count();
+            if (watching.size() + added > MAX_WATCHED) {
+                return false;
+            }
+            for (String username : usernames) {
+                if (watching.add(username)) {
+                    // Added inside compute so a concurrent removeWatcher cannot drop the set in between
+                    watchers.compute(username, (key, sessions) -> {
+                        Set<SessionState> updated = sessions != null ? sessions : ConcurrentHashMap.<SessionState>newKeySet();
+                        updated.add(state);
+                        return updated;
+                    });
+                }
+            }
+        }
+        List<String> online = new ArrayList<>();
+        List<String> offline = new ArrayList<>();
+        for (String username : new LinkedHashSet<>(usernames)) {
+            (onlineUsers.contains(username) ? online : offline).add(username);
+        }
+        state.reply(presenceFrame(online, offline));
+        return true;
+    }
+
+    /**
+     * Ends the session's subscription to users.
+     */
+    public static void unwatch(SessionState state, Collection<String> usernames) {
+        Set<String> watching = state.getWatching();
+        synchronized (watching) {
+            for (String username : usernames) {
+                if (watching.remove(username)) {
+                    removeWatcher(username, state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends all subscriptions of a closed session.
+     */
+    public static void unwatchAll(SessionState state) {
+        Set<String> watching = state.getWatching();
+        synchronized (watching) {
+            for (String username : watching) {
+                removeWatcher(username, state);
+            }
+            watching.clear();
+        }
+    }
+
+    /**
+     * Updates a user's presence after their session was registered or removed
+     * and tells the user's watchers if it changed.
+     * @param isOnline the current routing state; evaluated under a lock so racing
+     *                 updates of one user cannot leave a stale state behind
+     */
+    static void publish(String username, Predicate<String> isOnline) {
+        boolean online;
+        synchronized (onlineUsers) {
+            online = isOnline.test(username);
+            boolean changed = online ? onlineUsers.add(username) : onlineUsers.remove(username);
+            if (!changed) {
+                return;
+            }
+        }
+        Set<SessionState> sessions = watchers.get(username);
+        if (suspended || sessions == null || sessions.isEmpty()) {
+            return;
+        }
+        String frame = online ? presenceFrame(List.of(username), List.of()) : presenceFrame(List.of(), List.of(username));
+        for (SessionState watcher : sessions) {
+            watcher.send(frame);
+        }
+    }
+
+    /**
+     * Stops sending presence events for the rest of the process' lifetime.
+     */
+    public static void suspend() {
+        suspended = true;
+    }
+
+    /**
+     * Lists online users in sorted order.
+     * @param after only names sorting after this one are returned, null to start at the first
+     * @param limit maximum number of names
+     */
+    public static List<String> listOnline(String after, int limit) {
+        NavigableSet<String> tail = after != null ? onlineUsers.tailSet(after, false) : onlineUsers;
+        List<String> page = new ArrayList<>(Math.min(limit, 64));
+        for (String username : tail) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(username);
+        }
+        return page;
+    }
+
+    public static int getOnlineCount() {
+        return onlineUsers.size();
+    }
+
+    private static void removeWatcher(String username, SessionState state) {
+        watchers.computeIfPresent(username, (key, sessions) -> {
+            sessions.remove(state);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+
+    private static String presenceFrame(List<String> online, List<String> offline) {
+        return "presence:{\"online\":" + jsonb.toJson(online) + ",\"offline\":" + jsonb.toJson(offline) + "}";
+    }
+}
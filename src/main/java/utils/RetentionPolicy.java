@@ -0,0 +1,101 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How long stored messages are kept. A global maximum age applies to every
+ * conversation unless the overrides file sets another one for it.
+ *
+ * Configuration:
+ *   chatapp.retention.maxAgeDays  system property, global maximum age (default 0 = keep forever)
+ *   data/retention.properties     per-conversation overrides, re-read before every compaction:
+ *                                   alice:bob=30   direct chat between alice and bob
+ *                                   *=7            broadcast channel
+ *                                 0 keeps a conversation forever, lines starting with # are ignored.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class RetentionPolicy {
+    public static final long KEEP_FOREVER = Long.MAX_VALUE;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final Path OVERRIDES_FILE = Paths.get("data", "retention.properties");
+
+    private final long globalMaxAge;
+    private volatile Map<String, Long> overrides = Map.of();
+
+    public RetentionPolicy() {
+        this.globalMaxAge = toMillis(Long.getLong("chatapp.retention.maxAgeDays", 0));
+        reload();
+    }
+
+    /**
+     * Re-reads the per-conversation overrides.
+     */
+    public void reload() {
+        if (!Files.exists(OVERRIDES_FILE)) {
+            overrides = Map.of();
+            return;
+        }
+        // Not read as Properties, which would split the key at the ':' of a conversation
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(OVERRIDES_FILE, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("[RETENTION] Keeping previous overrides, failed to read " + OVERRIDES_FILE + ": " + e.getMessage());
+            return;
+        }
+        Map<String, Long> loaded = new HashMap<>();
+        for (String line : lines) {
+            line = line.trim();
+            int separator = line.lastIndexOf('=');
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                loaded.put(line.substring(0, separator).trim(), toMillis(Long.parseLong(line.substring(separator + 1).trim())));
+            } catch (RuntimeException e) {
+                System.err.println("[RETENTION] Ignoring invalid line in " + OVERRIDES_FILE + ": " + line);
+            }
+        }
+        overrides = loaded;
+    }
+
+    /**
+     * @return the maximum age of the conversation's messages in milliseconds, or KEEP_FOREVER
+     */
+    public long getMaxAge(String conversation) {
+        Long override = overrides.get(conversation);
+        return override != null ? override : globalMaxAge;
+    }
+
+    public boolean isExpired(String conversation, long timestamp, long now) {
+        long maxAge = getMaxAge(conversation);
+        return maxAge != KEEP_FOREVER && timestamp < now - maxAge;
+    }
+
+    /**
+     * @return false if no conversation can ever expire
+     */
+    public boolean isActive() {
+        if (globalMaxAge != KEEP_FOREVER) {
+            return true;
+        }
+        for (long maxAge : overrides.values()) {
+            if (maxAge != KEEP_FOREVER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long toMillis(long days) {
+        return days <= 0 ? KEEP_FOREVER : days * DAY_MILLIS;
+    }
+}
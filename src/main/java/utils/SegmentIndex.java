@@ -0,0 +1,180 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Sparse index of one MessageLog segment: its seq and time range, the
+ * conversations it contains and a checkpoint about every INTERVAL_BYTES with
+ * the byte offset of a record. A query skips segments that cannot match and
+ * starts reading a matching segment at the last checkpoint before the first
+ * record it needs. Sealed segments keep their index in a sidecar file that
+ * records the segment's size, so an index that no longer matches its segment
+ * is rebuilt instead of used.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class SegmentIndex {
+    static final long INTERVAL_BYTES = 32 * 1024;
+
+    private final long firstSeq;
+    private long lastSeq = -1;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private final Set<String> conversations = new HashSet<>();
+
+    // Checkpoint i: a record's seq, its byte offset and the newest timestamp of all records before it
+    private long[] checkpointSeqs = new long[16];
+    private long[] checkpointOffsets = new long[16];
+    private long[] checkpointMaxTimestamps = new long[16];
+    private int checkpoints;
+
+    public SegmentIndex(long firstSeq) {
+        this.firstSeq = firstSeq;
+    }
+
+    /**
+     * Adds a record that starts at the given byte offset of the segment.
+     */
+    synchronized void add(long seq, long timestamp, String conversation, long offset) {
+        if (checkpoints == 0 || offset - checkpointOffsets[checkpoints - 1] >= INTERVAL_BYTES) {
+            addCheckpoint(seq, offset, maxTimestamp);
+        }
+        lastSeq = Math.max(lastSeq, seq);
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        conversations.add(conversation);
+    }
+
+    /**
+     * Checks whether the segment may hold a record with seq &gt;= fromSeq,
+     * fromTimestamp &lt;= timestamp &lt; untilTimestamp and a matching conversation.
+     */
+    synchronized boolean mayContain(long fromSeq, long fromTimestamp, long untilTimestamp, Predicate<String> conversationFilter) {
+        if (checkpoints == 0 || lastSeq < fromSeq || maxTimestamp < fromTimestamp || minTimestamp >= untilTimestamp) {
+            return false;
+        }
+        for (String conversation : conversations) {
+            if (conversationFilter.test(conversation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the byte offset from which on all records with seq &gt;= fromSeq
+     *         and timestamp &gt;= fromTimestamp are found
+     */
+    synchronized long startOffset(long fromSeq, long fromTimestamp) {
+        int start = 0;
+        // Records before a checkpoint have a smaller seq, and none is newer than its max timestamp
+        for (int i = checkpoints - 1; i > 0; i--) {
+            if (checkpointSeqs[i] <= fromSeq || checkpointMaxTimestamps[i] < fromTimestamp) {
+                start = i;
+                break;
+            }
+        }
+        return checkpoints > 0 ? checkpointOffsets[start] : 0;
+    }
+
+    public long getFirstSeq() {
+        return firstSeq;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    public synchronized long getMinTimestamp() {
+        return minTimestamp;
+    }
+
+    public synchronized long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    /**
+     * @return a copy of the conversations with records in the segment
+     */
+    public synchronized Set<String> getConversations() {
+        return new HashSet<>(conversations);
+    }
+
+    /**
+     * Writes the index next to its segment; a temp file is moved into place so a
+     * crash never leaves half an index.
+     * @param segmentBytes size of the indexed segment file
+     */
+    synchronized void write(Path file, long segmentBytes) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(firstSeq + "\t" + lastSeq + "\t" + minTimestamp + "\t" + maxTimestamp + "\t" + segmentBytes);
+            writer.newLine();
+            writer.write(String.join("\t", conversations.stream().map(MessageLog::escape).toList()));
+            writer.newLine();
+            for (int i = 0; i < checkpoints; i++) {
+                writer.write(checkpointSeqs[i] + "\t" + checkpointOffsets[i] + "\t" + checkpointMaxTimestamps[i]);
+                writer.newLine();
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an index written by {@link #write}.
+     * @param segmentBytes current size of the segment file
+     * @return the index, or null if the file is missing, unreadable or was written for a different segment size
+     */
+    static SegmentIndex read(Path file, long segmentBytes) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String[] header = reader.readLine().split("\t");
+            if (header.length != 5 || Long.parseLong(header[4]) != segmentBytes) {
+                return null;
+            }
+            SegmentIndex index = new SegmentIndex(Long.parseLong(header[0]));
+            index.lastSeq = Long.parseLong(header[1]);
+            index.minTimestamp = Long.parseLong(header[2]);
+            index.maxTimestamp = Long.parseLong(header[3]);
+            String conversations = reader.readLine();
+            if (!conversations.isEmpty()) {
+                for (String conversation : conversations.split("\t")) {
+                    index.conversations.add(MessageLog.unescape(conversation));
+                }
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] checkpoint = line.split("\t");
+                index.addCheckpoint(Long.parseLong(checkpoint[0]), Long.parseLong(checkpoint[1]), Long.parseLong(checkpoint[2]));
+            }
+            return index;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[MESSAGE LOG] Ignoring unreadable index " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void addCheckpoint(long seq, long offset, long maxTimestampBefore) {
+        if (checkpoints == checkpointSeqs.length) {
+            checkpointSeqs = Arrays.copyOf(checkpointSeqs, checkpoints * 2);
+            checkpointOffsets = Arrays.copyOf(checkpointOffsets, checkpoints * 2);
+            checkpointMaxTimestamps = Arrays.copyOf(checkpointMaxTimestamps, checkpoints * 2);
+        }
+        checkpointSeqs[checkpoints] = seq;
+        checkpointOffsets[checkpoints] = offset;
+        checkpointMaxTimestamps[checkpoints] = maxTimestampBefore;
+        checkpoints++;
+    }
+}
@@ -0,0 +1,292 @@
+package utils;
+
+import jakarta.websocket.Session;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Per-connection state attached to a WebSocket session. Holds the pending
+ * authentication challenge, the authenticated identity, the inbound rate limit,
+ * the outbound queue and the parse state of an inbound attachment chunk, so
+ * handlers need no global maps keyed by session. Also records which users
+ * the session watches for presence changes. Once the client negotiated
+ * compression, large frames are compressed on their way into the queue.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.2
+ */
+public class SessionState {
+    private static final String PROPERTY_KEY = SessionState.class.getName();
+
+    // Inbound frame limit: sustained frames per second and burst size
+    // (system properties chatapp.rateLimit.framesPerSecond and chatapp.rateLimit.burst)
+    static final double FRAMES_PER_SECOND = Double.parseDouble(System.getProperty("chatapp.rateLimit.framesPerSecond", "20"));
+    static final double FRAME_BURST = Double.parseDouble(System.getProperty("chatapp.rateLimit.burst", "40"));
+
+    private final Session session;
+    private final OutboundQueue outbound;
+    private final AttachmentHandler.ChunkReader chunkReader = new AttachmentHandler.ChunkReader();
+    private final DeliveryAcks acks = new DeliveryAcks(this);
+    // Client opted into cumulative, coalesced acks instead of one confirmation per message
+    private volatile boolean cumulativeAcks;
+    // Set while the client accepts compressed frames (compression:deflate)
+    private volatile FrameCompressor compressor;
+
+    // Authentication
+    private String challenge;
+    private long challengeExpiresAt;
+    private volatile String publicKeyId;
+    private volatile String username;
+
+    // Name under which MessageHandler routes direct messages to this session
+    private volatile String routedUsername;
+    // Users whose presence this session subscribed to
+    private final Set<String> watching = new HashSet<>();
+
+    // Correlation id of the request being handled, echoed on every reply
+    private volatile String requestId;
+
+    // Token bucket for inbound frames
+    private double frameTokens = FRAME_BURST;
+    private long lastRefillNanos = System.nanoTime();
+
+    private SessionState(Session session) {
+        this.session = session;
+        this.outbound = new OutboundQueue(session);
+    }
+
+    /**
+     * Creates the state for a new session and attaches it to the session's user properties.
+     */
+    public static SessionState attach(Session session) {
+        SessionState state = new SessionState(session);
+        session.getUserProperties().put(PROPERTY_KEY, state);
+        return state;
+    }
+
+    /**
+     * Returns the state attached to a session, attaching a fresh one if missing.
+     */
+    public static SessionState of(Session session) {
+        return (SessionState) session.getUserProperties().computeIfAbsent(PROPERTY_KEY, k -> new SessionState(session));
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public AttachmentHandler.ChunkReader getChunkReader() {
+        return chunkReader;
+    }
+
+    public DeliveryAcks getAcks() {
+        return acks;
+    }
+
+    public boolean isCumulativeAcks() {
+        return cumulativeAcks;
+    }
+    public void setCumulativeAcks(boolean cumulativeAcks) {
+        this.cumulativeAcks = cumulativeAcks;
+    }
+
+    /**
+     * @return the session's compressor, or null if the client did not negotiate compression
+     */
+    public FrameCompressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Starts or stops compressing outbound frames. Frames already queued are sent as they are.
+     */
+    public synchronized void setCompression(boolean enabled) {
+        if (enabled && compressor == null) {
+            compressor = new FrameCompressor();
+        } else if (!enabled && compressor != null) {
+            compressor.close();
+            compressor = null;
+        }
+    }
+
+    /**
+     * Queues a text frame for this session.
+     * @return false if the frame could not be queued
+     */
+    public boolean send(String text) {
+        return queue(text, false);
+    }
+
+    /**
+     * Queues a frame shared with other sessions. If compressed, the compressed
+     * bytes are shared as well.
+     * @return false if the frame could not be queued
+     */
+    public boolean send(FrameCompressor.SharedFrame frame) {
+        FrameCompressor current = compressor;
+        if (current != null && frame.getText().length() >= FrameCompressor.THRESHOLD) {
+            ByteBuffer compressed = frame.compressedWith(current);
+            if (compressed != null) {
+                return outbound.enqueueBinary(compressed, null);
+            }
+        }
+        return outbound.enqueue(frame.getText());
+    }
+
+    /**
+     * Queues a reply to the request currently being handled. If the client sent
+     * a correlation id, the reply is prefixed with "#id ".
+     * @return false if the frame could not be queued
+     */
+    public boolean reply(String text) {
+        String id = requestId;
+        return queue(id == null ? text : "#" + id + " " + text, false);
+    }
+
+    /**
+     * Queues a text frame in the control lane, ahead of queued chat traffic.
+     * @return false if the frame could not be queued
+     */
+    public boolean sendControl(String text) {
+        return queue(text, true);
+    }
+
+    /**
+     * Like {@link #reply(String)}, but in the control lane. For handshake, key
+     * and error replies the client waits for before it can go on.
+     * @return false if the frame could not be queued
+     */
+    public boolean replyControl(String text) {
+        String id = requestId;
+        return queue(id == null ? text : "#" + id + " " + text, true);
+    }
+
+    private boolean queue(String text, boolean control) {
+        FrameCompressor current = compressor;
+        if (current != null && text.length() >= FrameCompressor.THRESHOLD) {
+            ByteBuffer compressed = current.compress(text);
+            if (compressed != null) {
+                return control ? outbound.enqueueControlBinary(compressed) : outbound.enqueueBinary(compressed, null);
+            }
+        }
+        return control ? outbound.enqueueControl(text) : outbound.enqueue(text);
+    }
+
+    /**
+     * Sets the correlation id for replies until {@link #endRequest()} is called.
+     * The container delivers one message per session at a time, so a single field suffices.
+     */
+    public void beginRequest(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public void endRequest() {
+        this.requestId = null;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    // ------------------------------------------------------------- //
+    // Challenges are single-use and expire after a fixed time
+
+    public synchronized void issueChallenge(String challenge, long expiresAt) {
+        this.challenge = challenge;
+        this.challengeExpiresAt = expiresAt;
+    }
+
+    /**
+     * Removes and returns the pending challenge.
+     * @return the challenge, or null if none was issued or it has expired
+     */
+    public synchronized String consumeChallenge(long now) {
+        String current = challenge;
+        challenge = null;
+        if (current == null || now > challengeExpiresAt) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * Drops the pending challenge if it has expired.
+     * @return true if no challenge is pending anymore
+     */
+    public synchronized boolean expireChallenge(long now) {
+        if (challenge != null && now > challengeExpiresAt) {
+            challenge = null;
+        }
+        return challenge == null;
+    }
+
+    // ------------------------------------------------------------- //
+
+    public void authenticate(String publicKeyId, String username) {
+        this.username = username;
+        this.publicKeyId = publicKeyId;
+    }
+
+    public boolean isAuthenticated() {
+        return publicKeyId != null;
+    }
+
+    public String getPublicKeyId() {
+        return publicKeyId;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getRoutedUsername() {
+        return routedUsername;
+    }
+
+    /**
+     * Users whose presence this session watches; guarded by the set's own lock.
+     */
+    Set<String> getWatching() {
+        return watching;
+    }
+
+    /**
+     * Sets the routing name and returns the previous one.
+     */
+    public String setRoutedUsername(String routedUsername) {
+        String previous = this.routedUsername;
+        this.routedUsername = routedUsername;
+        return previous;
+    }
+
+    /**
+     * Takes one token from the inbound frame bucket.
+     * @return false if the session exceeded its frame rate
+     */
+    public synchronized boolean tryAcquireFrame() {
+        long now = System.nanoTime();
+        frameTokens = Math.min(FRAME_BURST, frameTokens + (now - lastRefillNanos) * FRAMES_PER_SECOND / 1_000_000_000.0);
+        lastRefillNanos = now;
+        if (frameTokens < 1.0) {
+            return false;
+        }
+        frameTokens -= 1.0;
+        return true;
+    }
+
+    /**
+     * Clears authentication state and pending output when the session closes.
+     */
+    public synchronized void clear() {
+        challenge = null;
+        publicKeyId = null;
+        username = null;
+        outbound.clear();
+        setCompression(false);
+    }
+}
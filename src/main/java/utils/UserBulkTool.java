@@ -0,0 +1,359 @@
+package utils;
+
+import jakarta.json.bind.Jsonb;
+import jakarta.json.bind.JsonbBuilder;
+import jakarta.json.bind.JsonbException;
+import model.ServerUser;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * Bulk import and export of the user database, for migrations too large for
+ * one registerUser call per user, each of which rewrites the whole file.
+ *
+ * Users are read and written as CSV (username,publicKeyN,publicKeyE[,registrationTime],
+ * keys in hex, optional header line) or as JSON lines with the same property
+ * names, chosen by the file extension (.csv, .jsonl or .ndjson).
+ *
+ * The import streams its input in batches. The lines of a batch are parsed and
+ * their public key ids hashed in parallel, then the users are deduplicated in
+ * input order against the database and each other, first by key, then by
+ * username. The existing users and the new ones are written to a new database
+ * file in one pass, which replaces the old one in one step. Run it while the
+ * server is stopped; a running server does not see imported users before its
+ * next start.
+ *
+ * The export reads the database file once. The server replaces that file in
+ * one step on every change, so the export is a consistent snapshot and the
+ * server can keep running.
+ *
+ * Usage: UserBulkTool import|export &lt;file&gt;
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class UserBulkTool {
+    static final int BATCH_LINES = 50_000;
+    private static final Path DATABASE_FILE = Paths.get(UserDatabase.USER_DATA_DIR, UserDatabase.USER_DATABASE_FILE);
+    private static final String CSV_HEADER = "username,publicKeyN,publicKeyE,registrationTime";
+    private static final Jsonb jsonb = JsonbBuilder.create();
+
+    /**
+     * One user as read from and written to JSON lines.
+     */
+    public static class UserRecord {
+        public String username;
+        public String publicKeyN;
+        public String publicKeyE;
+        public Long registrationTime;
+    }
+
+    // A parsed input line; error is set instead of the id if the line is invalid
+    private record Candidate(int line, String username, String publicKeyN, String publicKeyE,
+                             long registrationTime, String publicKeyId, String error) {
+    }
+
+    private final boolean jsonLines;
+    private final long now = System.currentTimeMillis();
+    private final Set<String> publicKeyIds = new HashSet<>();
+    private final Set<String> usernames = new HashSet<>();
+    private long imported;
+    private long duplicateKeys;
+    private long duplicateUsernames;
+    private long invalid;
+
+    private UserBulkTool(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        this.jsonLines = name.endsWith(".jsonl") || name.endsWith(".ndjson");
+        if (!jsonLines && !name.endsWith(".csv")) {
+            throw new IllegalArgumentException("Unknown format, expected .csv, .jsonl or .ndjson: " + file);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: UserBulkTool import|export <users.csv|users.jsonl>");
+            System.exit(2);
+        }
+        Path file = Paths.get(args[1]);
+        UserBulkTool tool = new UserBulkTool(file);
+        if (args[0].equals("import")) {
+            tool.importUsers(file);
+        } else {
+            tool.exportUsers(file);
+        }
+    }
+
+    private void importUsers(Path input) throws IOException {
+        long start = System.nanoTime();
+        Properties existing = loadDatabase();
+        for (String key : existing.stringPropertyNames()) {
+            if (key.startsWith("user.") && key.endsWith(".username")) {
+                publicKeyIds.add(key.substring("user.".length(), key.length() - ".username".length()));
+                usernames.add(existing.getProperty(key));
+            } else if (key.startsWith("retired.")) {
+                // Names of removed users whose messages are still stored stay taken
+                usernames.add(key.substring("retired.".length()));
+            }
+        }
+        long existingUsers = publicKeyIds.size();
+
+        Files.createDirectories(DATABASE_FILE.getParent());
+        Path temp = DATABASE_FILE.resolveSibling(DATABASE_FILE.getFileName() + ".import");
+        // Written by Properties.store, which escapes keys and values the way the server loads them
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            existing.store(out, "User Database - Bulk import");
+            List<String> batch = new ArrayList<>(BATCH_LINES);
+            int firstLine = 1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                batch.add(line);
+                if (batch.size() == BATCH_LINES) {
+                    importBatch(batch, firstLine, out);
+                    firstLine += batch.size();
+                    batch.clear();
+                }
+            }
+            importBatch(batch, firstLine, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, DATABASE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("[USER IMPORT] Imported " + imported + " users in " + (System.nanoTime() - start) / 1_000_000 + " ms"
+                + " (" + existingUsers + " existing, " + duplicateKeys + " duplicate keys, "
+                + duplicateUsernames + " duplicate usernames, " + invalid + " invalid lines)");
+    }
+
+    private void importBatch(List<String> batch, int firstLine, OutputStream out) throws IOException {
+        // Parsing and hashing dominate, so they run in parallel; the order is kept for deduplication
+        List<Candidate> candidates = IntStream.range(0, batch.size()).parallel()
+                .mapToObj(i -> parse(batch.get(i), firstLine + i))
+                .toList();
+        Properties users = new Properties();
+        for (Candidate candidate : candidates) {
+            if (candidate == null) {
+                continue;
+            }
+            if (candidate.error() != null) {
+                invalid++;
+                System.err.println("[USER IMPORT] Line " + candidate.line() + ": " + candidate.error());
+            } else if (!publicKeyIds.add(candidate.publicKeyId())) {
+                duplicateKeys++;
+            } else if (!usernames.add(candidate.username())) {
+                publicKeyIds.remove(candidate.publicKeyId());
+                duplicateUsernames++;
+            } else {
+                String prefix = "user." + candidate.publicKeyId() + ".";
+                users.setProperty(prefix + "username", candidate.username());
+                users.setProperty(prefix + "publicKeyN", candidate.publicKeyN());
+                users.setProperty(prefix + "publicKeyE", candidate.publicKeyE());
+                users.setProperty(prefix + "registrationTime", Long.toString(candidate.registrationTime()));
+                imported++;
+            }
+        }
+        if (!users.isEmpty()) {
+            users.store(out, "Lines " + firstLine + "-" + (firstLine + batch.size() - 1));
+        }
+    }
+
+    // Returns null for lines without a user: blank lines and the CSV header
+    private Candidate parse(String line, int lineNumber) {
+        if (line.isBlank() || (!jsonLines && lineNumber == 1 && line.startsWith("username,"))) {
+            return null;
+        }
+        String username;
+        String n;
+        String e;
+        Long registrationTime = null;
+        if (jsonLines) {
+            UserRecord user;
+            try {
+                user = jsonb.fromJson(line, UserRecord.class);
+            } catch (JsonbException ex) {
+                return invalid(lineNumber, "Invalid JSON");
+            }
+            username = user.username;
+            n = user.publicKeyN;
+            e = user.publicKeyE;
+            registrationTime = user.registrationTime;
+        } else {
+            List<String> fields = parseCsv(line);
+            if (fields == null || fields.size() < 3 || fields.size() > 4) {
+                return invalid(lineNumber, "Expected " + CSV_HEADER);
+            }
+            username = fields.get(0);
+            n = fields.get(1);
+            e = fields.get(2);
+            if (fields.size() == 4 && !fields.get(3).isEmpty()) {
+                try {
+                    registrationTime = Long.parseLong(fields.get(3));
+                } catch (NumberFormatException ex) {
+                    return invalid(lineNumber, "Invalid registration time");
+                }
+            }
+        }
+        if (username == null || !isValidUsername(username)) {
+            return invalid(lineNumber, "Invalid username");
+        }
+        // Keys are stored and hashed in canonical hex, as registerUser does
+        String publicKeyN = canonicalHex(n);
+        String publicKeyE = canonicalHex(e);
+        if (publicKeyN == null || publicKeyE == null) {
+            return invalid(lineNumber, "Invalid public key");
+        }
+        return new Candidate(lineNumber, username, publicKeyN, publicKeyE,
+                registrationTime != null ? registrationTime : now, ServerUser.publicKeyIdOf(publicKeyN, publicKeyE), null);
+    }
+
+    /**
+     * What BigInteger.toString(16) gives for a positive hex number, or null if it is not one.
+     * Parsing and printing 2048 bit moduli through BigInteger was most of the import time.
+     */
+    private static String canonicalHex(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        int start = 0;
+        while (start < hex.length() && hex.charAt(start) == '0') {
+            start++;
+        }
+        if (start == hex.length()) {
+            return null; // Empty or zero
+        }
+        boolean lowercase = true;
+        for (int i = start; i < hex.length(); i++) {
+            char c = hex.charAt(i);
+            if (c >= 'A' && c <= 'F') {
+                lowercase = false;
+            } else if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return null;
+            }
+        }
+        String digits = hex.substring(start);
+        return lowercase ? digits : digits.toLowerCase(Locale.ROOT);
+    }
+
+    private static Candidate invalid(int lineNumber, String error) {
+        return new Candidate(lineNumber, null, null, null, 0, null, error);
+    }
+
+    // Same rule as the register command: the name ends up in colon-separated frames and conversation keys
+    private static boolean isValidUsername(String username) {
+        if (username.isEmpty() || username.indexOf(':') >= 0) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            if (Character.isISOControl(username.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void exportUsers(Path output) throws IOException {
+        long start = System.nanoTime();
+        Properties database = loadDatabase();
+        Path temp = output.toAbsolutePath().resolveSibling(output.getFileName() + ".tmp");
+        long exported = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            if (!jsonLines) {
+                writer.write(CSV_HEADER);
+                writer.newLine();
+            }
+            for (String key : database.stringPropertyNames()) {
+                if (!key.startsWith("user.") || !key.endsWith(".username")) {
+                    continue;
+                }
+                String prefix = key.substring(0, key.length() - "username".length());
+                UserRecord user = new UserRecord();
+                user.username = database.getProperty(key);
+                user.publicKeyN = database.getProperty(prefix + "publicKeyN");
+                user.publicKeyE = database.getProperty(prefix + "publicKeyE");
+                String registered = database.getProperty(prefix + "registrationTime");
+                user.registrationTime = registered != null ? Long.valueOf(registered) : null;
+                if (user.publicKeyN == null || user.publicKeyE == null) {
+                    continue;
+                }
+                writer.write(jsonLines ? jsonb.toJson(user) : toCsv(user));
+                writer.newLine();
+                exported++;
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("[USER EXPORT] Exported " + exported + " users to " + output + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static Properties loadDatabase() throws IOException {
+        Properties properties = new Properties();
+        if (Files.exists(DATABASE_FILE)) {
+            // Opened once; the server replaces the file instead of rewriting it, so this is one version of it
+            try (InputStream in = Files.newInputStream(DATABASE_FILE)) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+
+    private static String toCsv(UserRecord user) {
+        String username = user.username;
+        if (username.indexOf(',') >= 0 || username.indexOf('"') >= 0 || username.startsWith(" ") || username.endsWith(" ")) {
+            username = '"' + username.replace("\"", "\"\"") + '"';
+        }
+        return username + "," + user.publicKeyN + "," + user.publicKeyE + "," + (user.registrationTime != null ? user.registrationTime : "");
+    }
+
+    // Splits a CSV line; fields may be quoted with "" as an escaped quote. Returns null if a quote is not closed.
+    private static List<String> parseCsv(String line) {
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.isEmpty()) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
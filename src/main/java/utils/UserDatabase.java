@@ -1,61 +1,58 @@
 package utils;
 
 import model.ServerUser;
+import monitoring.Trace;
+import monitoring.UserDatabaseEvent;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Manages user database on the server side.
  * Users are uniquely identified by their public key, not username.
+ * The last authentication of every key is tracked so keys nobody has used for
+ * a long time can be dropped. Usernames are also kept sorted, so a prefix
+ * search only visits the names it returns.
+ * The name of a removed user stays reserved until none of their messages are
+ * stored anymore, so nobody who registers it later can read them.
  * @author Max Staneker, Mia Schienagel
- * @version 0.2
+ * @version 0.5
  */
 public class UserDatabase {
-    private static final String USER_DATA_DIR = "data";
-    private static final String USER_DATABASE_FILE = "userDatabase.properties";
-    private static final Map<String, ServerUser> userCache = new HashMap<>(); // Key = publicKeyId
-    private static final Map<String, String> usernameToKeyId = new HashMap<>(); // Username -> publicKeyId
+    static final String USER_DATA_DIR = "data";
+    static final String USER_DATABASE_FILE = "userDatabase.properties";
+    private static final Map<String, ServerUser> userCache = new ConcurrentHashMap<>(); // Key = publicKeyId
+    private static final Map<String, String> usernameToKeyId = new ConcurrentHashMap<>(); // Username -> publicKeyId
+    private static final Map<String, Long> lastSeen = new ConcurrentHashMap<>(); // publicKeyId -> last authentication
+    private static final NavigableSet<String> sortedUsernames = new ConcurrentSkipListSet<>();
+    private static final Map<String, Long> retiredUsernames = new ConcurrentHashMap<>(); // Username -> removal time
+    private static volatile boolean lastSeenChanged;
     
     static {
         loadAllUsers();
     }
     
-    /**
-     * Generate a unique ID based on public key
-     */
-    private static String generatePublicKeyId(BigInteger n, BigInteger e) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            String combined = n.toString(16) + ":" + e.toString(16);
-            byte[] hash = digest.digest(combined.getBytes());
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException ex) {
-            throw new RuntimeException("SHA-256 not available", ex);
-        }
-    }
-    
     /**
      * Register a new user with their public key
      * Returns true if user was registered, false if public key already exists
      */
     public static boolean registerUser(String username, BigInteger publicKeyN, BigInteger publicKeyE) {
-        String publicKeyId = generatePublicKeyId(publicKeyN, publicKeyE);
+        String publicKeyId = ServerUser.publicKeyIdOf(publicKeyN, publicKeyE);
         
         // Check if this public key already exists
         if (userCache.containsKey(publicKeyId)) {
@@ -66,6 +63,8 @@ public class UserDatabase {
         ServerUser user = new ServerUser(username, publicKeyN, publicKeyE);
         userCache.put(publicKeyId, user);
         usernameToKeyId.put(username, publicKeyId);
+        sortedUsernames.add(username);
+        lastSeen.put(publicKeyId, user.getRegistrationTime());
         saveUserToFile(user);
         System.out.println("[SERVER] User registered with ID " + publicKeyId + ": " + username);
         return true;
@@ -75,7 +74,7 @@ public class UserDatabase {
      * Get a user by public key
      */
     public static ServerUser getUserByPublicKey(BigInteger publicKeyN, BigInteger publicKeyE) {
-        String publicKeyId = generatePublicKeyId(publicKeyN, publicKeyE);
+        String publicKeyId = ServerUser.publicKeyIdOf(publicKeyN, publicKeyE);
         return userCache.get(publicKeyId);
     }
     
@@ -94,15 +93,15 @@ public class UserDatabase {
      * Check if a public key exists
      */
     public static boolean publicKeyExists(BigInteger publicKeyN, BigInteger publicKeyE) {
-        String publicKeyId = generatePublicKeyId(publicKeyN, publicKeyE);
+        String publicKeyId = ServerUser.publicKeyIdOf(publicKeyN, publicKeyE);
         return userCache.containsKey(publicKeyId);
     }
     
     /**
-     * Check if username is already taken
+     * Check if username is already taken, by a user or by a removed user whose messages are still stored
      */
     public static boolean usernameExists(String username) {
-        return usernameToKeyId.containsKey(username);
+        return usernameToKeyId.containsKey(username) || retiredUsernames.containsKey(username);
     }
     
     /**
@@ -130,10 +129,136 @@ public class UserDatabase {
         return null;
     }
     
+    /**
+     * Records a successful authentication of a key
+     */
+    public static void markSeen(String publicKeyId) {
+        if (userCache.containsKey(publicKeyId)) {
+            lastSeen.put(publicKeyId, System.currentTimeMillis());
+            lastSeenChanged = true;
+        }
+    }
+
+    /**
+     * Remove a user and their public key; the username stays reserved until released
+     * Returns true if the user existed
+     */
+    public static boolean removeUser(String username) {
+        return removeUsers(List.of(username)) == 1;
+    }
+
+    /**
+     * Remove users whose key was not used for authentication since the given time
+     * @param keep users that must not be removed, e.g. because they are online
+     * @return the number of removed users
+     */
+    public static int removeStaleUsers(long seenBefore, Predicate<String> keep) {
+        List<String> stale = new ArrayList<>();
+        for (ServerUser user : userCache.values()) {
+            long seen = lastSeen.getOrDefault(user.getPublicKeyId(), user.getRegistrationTime());
+            if (seen < seenBefore && !keep.test(user.getUsername())) {
+                stale.add(user.getUsername());
+            }
+        }
+        return removeUsers(stale);
+    }
+
+    /**
+     * Remove users and their public keys with one write of the database file
+     * @return the number of users that existed and were removed
+     */
+    private static int removeUsers(List<String> usernames) {
+        long removedAt = System.currentTimeMillis();
+        Map<String, String> removed = new HashMap<>(); // Username -> publicKeyId
+        for (String username : usernames) {
+            String publicKeyId = usernameToKeyId.remove(username);
+            if (publicKeyId == null) {
+                continue;
+            }
+            retiredUsernames.put(username, removedAt);
+            userCache.remove(publicKeyId);
+            sortedUsernames.remove(username);
+            lastSeen.remove(publicKeyId);
+            removed.put(username, publicKeyId);
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        Set<String> removedKeyIds = new HashSet<>(removed.values());
+        updateDatabaseFile("remove", props -> {
+            // One pass over the file's keys, however many users are removed
+            for (String key : props.stringPropertyNames()) {
+                int idEnd = key.indexOf('.', "user.".length());
+                if (key.startsWith("user.") && idEnd > 0 && removedKeyIds.contains(key.substring("user.".length(), idEnd))) {
+                    props.remove(key);
+                }
+            }
+            removed.keySet().forEach(username -> props.setProperty("retired." + username, String.valueOf(removedAt)));
+        });
+        removed.forEach((username, publicKeyId) ->
+                System.out.println("[SERVER] User removed: " + username + " (ID: " + publicKeyId + ")"));
+        return removed.size();
+    }
+
+    /**
+     * Get the names of removed users that are still reserved
+     */
+    public static List<String> getRetiredUsernames() {
+        return new ArrayList<>(retiredUsernames.keySet());
+    }
+
+    /**
+     * Make the names of removed users available for registration again;
+     * only call this once none of their messages are stored anymore
+     */
+    public static void releaseUsernames(List<String> usernames) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        usernames.forEach(retiredUsernames::remove);
+        updateDatabaseFile("release", props -> usernames.forEach(username -> props.remove("retired." + username)));
+        System.out.println("[SERVER] Usernames released: " + usernames);
+    }
+
+    /**
+     * Persist the last authentication times, which are only tracked in memory otherwise
+     * @return false if nothing changed since the last call, so the file was not written
+     */
+    public static boolean saveLastSeen() {
+        if (!lastSeenChanged) {
+            return false;
+        }
+        // Cleared first: an authentication during the write is saved by the next call
+        lastSeenChanged = false;
+        updateDatabaseFile("save", props -> {
+            for (Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+                if (props.containsKey("user." + entry.getKey() + ".username")) {
+                    props.setProperty("user." + entry.getKey() + ".lastSeen", String.valueOf(entry.getValue()));
+                }
+            }
+        });
+        return true;
+    }
+
     /**
      * Save user to file
      */
     private static void saveUserToFile(ServerUser user) {
+        updateDatabaseFile("save", props -> {
+            String userPrefix = "user." + user.getPublicKeyId() + ".";
+            props.setProperty(userPrefix + "username", user.getUsername());
+            props.setProperty(userPrefix + "publicKeyN", user.getPublicKeyN().toString(16));
+            props.setProperty(userPrefix + "publicKeyE", user.getPublicKeyE().toString(16));
+            props.setProperty(userPrefix + "registrationTime", String.valueOf(user.getRegistrationTime()));
+        });
+    }
+
+    /**
+     * Read, modify and write back the database file; serialized so concurrent updates are not lost
+     */
+    private static synchronized void updateDatabaseFile(String operation, Consumer<Properties> update) {
+        UserDatabaseEvent event = new UserDatabaseEvent();
+        event.begin();
         try {
             // Create directory if it doesn't exist
             Path userDataDir = Paths.get(USER_DATA_DIR);
@@ -142,20 +267,21 @@ public class UserDatabase {
             }
             
             Properties props = loadDatabaseFile();
-            String userPrefix = "user." + user.getPublicKeyId() + ".";
-            props.setProperty(userPrefix + "username", user.getUsername());
-            props.setProperty(userPrefix + "publicKeyN", user.getPublicKeyN().toString(16));
-            props.setProperty(userPrefix + "publicKeyE", user.getPublicKeyE().toString(16));
-            props.setProperty(userPrefix + "registrationTime", String.valueOf(user.getRegistrationTime()));
+            update.accept(props);
             
-            File databaseFile = new File(userDataDir.toFile(), USER_DATABASE_FILE);
-            try (FileOutputStream fos = new FileOutputStream(databaseFile)) {
-                props.store(fos, "User Database - Updated on " + new java.util.Date());
+            // Replaced in one step, so readers such as UserBulkTool's export always see a complete file
+            Path databaseFile = userDataDir.resolve(USER_DATABASE_FILE);
+            Path temp = userDataDir.resolve(USER_DATABASE_FILE + ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                props.store(out, "User Database - Updated on " + new java.util.Date());
             }
+            Files.move(temp, databaseFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
             
         } catch (IOException e) {
             System.err.println("[SERVER] Error saving user to database: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            commit(event, operation);
         }
     }
     
@@ -163,9 +289,12 @@ public class UserDatabase {
      * Load all users from file into cache
      */
     private static void loadAllUsers() {
+        UserDatabaseEvent event = new UserDatabaseEvent();
+        event.begin();
         Properties props = loadDatabaseFile();
         if (props.isEmpty()) {
             System.out.println("[SERVER] No existing user database found.");
+            commit(event, "load");
             return;
         }
         
@@ -181,6 +310,12 @@ public class UserDatabase {
                     
                     userDataMap.computeIfAbsent(publicKeyId, k -> new HashMap<>()).put(property, props.getProperty(key));
                 }
+            } else if (key.startsWith("retired.")) {
+                try {
+                    retiredUsernames.put(key.substring("retired.".length()), Long.parseLong(props.getProperty(key)));
+                } catch (NumberFormatException e) {
+                    System.err.println("[SERVER] Error loading retired username " + key + ": " + e.getMessage());
+                }
             }
         }
         
@@ -197,14 +332,29 @@ public class UserDatabase {
                 ServerUser user = new ServerUser(username, publicKeyN, publicKeyE);
                 userCache.put(publicKeyId, user);
                 usernameToKeyId.put(username, publicKeyId);
+                sortedUsernames.add(username);
+                // Keys that were never seen count from their registration
+                String seen = userData.getOrDefault("lastSeen", userData.get("registrationTime"));
+                lastSeen.put(publicKeyId, seen != null ? Long.parseLong(seen) : System.currentTimeMillis());
                 
             } catch (Exception e) {
                 System.err.println("[SERVER] Error loading user with ID " + publicKeyId + ": " + e.getMessage());
             }
         }
         
+        commit(event, "load");
         System.out.println("[SERVER] Loaded " + userCache.size() + " users from database.");
     }
+
+    private static void commit(UserDatabaseEvent event, String operation) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.traceId = Trace.current();
+            event.operation = operation;
+            event.users = userCache.size();
+            event.commit();
+        }
+    }
     
     /**
      * Load database file or create empty properties
@@ -224,8 +374,28 @@ public class UserDatabase {
         return props;
     }
     
+    /**
+     * Find usernames starting with a prefix, in sorted order
+     * @param after only names sorting after this one are returned, null to start at the prefix
+     * @param limit maximum number of names
+     */
+    public static List<String> searchUsernames(String prefix, String after, int limit) {
+        NavigableSet<String> tail = after != null && after.compareTo(prefix) >= 0
+                ? sortedUsernames.tailSet(after, false)
+                : sortedUsernames.tailSet(prefix, true);
+        List<String> found = new ArrayList<>(Math.min(limit, 64));
+        for (String username : tail) {
+            if (found.size() == limit || !username.startsWith(prefix)) {
+                break;
+            }
+            found.add(username);
+        }
+        return found;
+    }
+
     /**
      * Get all registered usernames used for viewing who is currently online
+     * Copies the whole directory; use searchUsernames for lookups
      */
     public static String[] getAllUsernames() {
         return usernameToKeyId.keySet().toArray(new String[0]);
@@ -0,0 +1,305 @@
+package perf;
+
+import controller.ChatWebSocket;
+import jakarta.json.bind.spi.JsonbProvider;
+import utils.UserDatabase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Measures the bytes allocated on the handling thread per direct message, per
+ * broadcast recipient and per authentication handshake, driving ChatWebSocket
+ * with fake sessions. Fails when a measurement exceeds its committed budget in
+ * allocation-budgets.properties.
+ *
+ * Usage: AllocationBudget [--record path/to/allocation-budgets.properties]
+ * With --record the measurements plus RECORD_HEADROOM, at least 64 bytes, are written as the new budgets,
+ * together with the JSON-B provider they were measured with; a check with another
+ * provider fails, as its numbers would not be comparable.
+ * Run in an empty working directory; users and the message log are written to ./data.
+ * Sized to run in a few seconds as part of gradle check. The RSA keys of the
+ * simulated users are generated once and kept in the directory given by the
+ * system property perf.keyCache, if set.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.2
+ */
+public class AllocationBudget {
+    private static final String BUDGET_FILE = "allocation-budgets.properties";
+    private static final double RECORD_HEADROOM = 1.25;
+
+    private static final String PROVIDER_KEY = "jsonb.provider";
+
+    private static final int MESSAGE_WARMUP = 5_000;
+    private static final int MESSAGE_ITERATIONS = 5_000;
+    private static final int BROADCAST_ITERATIONS = 500;
+    // The per-recipient cost is the difference of two audiences; a large one keeps it out of the noise
+    private static final int BROADCAST_RECIPIENTS = 256;
+    private static final int HANDSHAKE_WARMUP = 5;
+    private static final int HANDSHAKE_ITERATIONS = 10;
+    private static final String CONTENT = "The quick brown fox jumps over the lazy dog. Pack my box with five dozen liquor jugs.";
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final PrintStream report = System.out;
+
+    private final Map<String, Long> measured = new LinkedHashMap<>();
+    // Sessions opened by the harness that are not one of the named users
+    private final List<Client> receivers = new ArrayList<>();
+    private int sessionCount;
+
+    public static void main(String[] args) throws Exception {
+        Path recordTo = args.length == 2 && args[0].equals("--record") ? Paths.get(args[1]) : null;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            report.println("Thread allocation counters are not supported by this JVM");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        // One fake client sends far more frames than the per-session rate limit allows
+        System.setProperty("chatapp.rateLimit.framesPerSecond", "1e9");
+        System.setProperty("chatapp.rateLimit.burst", "1e9");
+        // The handlers log every frame; the strings are still built and counted
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(discard);
+        System.setErr(discard);
+
+        AllocationBudget harness = new AllocationBudget();
+        harness.run();
+
+        if (recordTo != null) {
+            harness.record(recordTo);
+            System.exit(0);
+        }
+        System.exit(harness.check() ? 0 : 1);
+    }
+
+    private void run() throws GeneralSecurityException, IOException {
+        Client alice = connect("alice");
+        Client bob = connect("bob");
+        Client carol = register("carol");
+
+        String direct = "{\"sender\":\"alice\",\"recipient\":\"bob\",\"content\":\"" + CONTENT + "\"}";
+        for (int i = 0; i < MESSAGE_WARMUP; i++) {
+            alice.endpoint.onMessage(direct, alice.fake.getSession());
+        }
+        long before = allocated();
+        for (int i = 0; i < MESSAGE_ITERATIONS; i++) {
+            alice.endpoint.onMessage(direct, alice.fake.getSession());
+        }
+        measured.put("direct.message.bytes", (allocated() - before) / MESSAGE_ITERATIONS);
+
+        // Two runs with different audiences separate the fixed cost from the cost per recipient.
+        // Both stay below BroadcastEngine's inline threshold, so the fan-out runs on this thread.
+        String broadcast = "{\"sender\":\"alice\",\"content\":\"" + CONTENT + "\"}";
+        long small = measureBroadcast(alice, broadcast);
+        int smallAudience = ChatWebSocket.getSessions().size();
+        for (int i = smallAudience; i < BROADCAST_RECIPIENTS; i++) {
+            openSession();
+        }
+        long large = measureBroadcast(alice, broadcast);
+        int largeAudience = ChatWebSocket.getSessions().size();
+        long perRecipient = (large - small) / (largeAudience - smallAudience);
+        measured.put("broadcast.message.bytes", Math.max(0, small - perRecipient * smallAudience));
+        measured.put("broadcast.recipient.bytes", perRecipient);
+        for (Client receiver : receivers) {
+            receiver.endpoint.onClose(receiver.fake.getSession());
+        }
+
+        for (int i = 0; i < HANDSHAKE_WARMUP; i++) {
+            handshake(carol);
+        }
+        long total = 0;
+        for (int i = 0; i < HANDSHAKE_ITERATIONS; i++) {
+            total += handshake(carol);
+        }
+        measured.put("auth.handshake.bytes", total / HANDSHAKE_ITERATIONS);
+    }
+
+    private long measureBroadcast(Client sender, String broadcast) {
+        for (int i = 0; i < BROADCAST_ITERATIONS; i++) {
+            sender.endpoint.onMessage(broadcast, sender.fake.getSession());
+        }
+        long before = allocated();
+        for (int i = 0; i < BROADCAST_ITERATIONS; i++) {
+            sender.endpoint.onMessage(broadcast, sender.fake.getSession());
+        }
+        return (allocated() - before) / BROADCAST_ITERATIONS;
+    }
+
+    // Bytes allocated by auth-request and auth-response on a fresh session; signing is not counted
+    private long handshake(Client user) {
+        Client client = openSession();
+        client.keys = user.keys;
+        long before = allocated();
+        client.endpoint.onMessage("auth-request", client.fake.getSession());
+        long allocated = allocated() - before;
+        String response = "auth-response:" + client.sign() + ":" + user.username;
+        before = allocated();
+        client.endpoint.onMessage(response, client.fake.getSession());
+        allocated += allocated() - before;
+        client.endpoint.onClose(client.fake.getSession());
+        receivers.remove(client);
+        return allocated;
+    }
+
+    private Client openSession() {
+        Client client = new Client(new FakeSession("perf-" + sessionCount++), new ChatWebSocket());
+        client.endpoint.onOpen(client.fake.getSession());
+        receivers.add(client);
+        return client;
+    }
+
+    private Client register(String username) throws GeneralSecurityException, IOException {
+        KeyPair keys = keyPair(username);
+        RSAPublicKey publicKey = (RSAPublicKey) keys.getPublic();
+        UserDatabase.registerUser(username, publicKey.getModulus(), publicKey.getPublicExponent());
+        Client client = new Client(null, null);
+        client.username = username;
+        client.keys = keys;
+        return client;
+    }
+
+    private Client connect(String username) throws GeneralSecurityException, IOException {
+        Client user = register(username);
+        Client client = openSession();
+        receivers.remove(client);
+        client.keys = user.keys;
+        client.username = username;
+        client.endpoint.onMessage("auth-request", client.fake.getSession());
+        client.endpoint.onMessage("auth-response:" + client.sign() + ":" + username, client.fake.getSession());
+        return client;
+    }
+
+    // Generating a 2048 bit key takes longer than all measurements, so keys are reused between runs
+    private static KeyPair keyPair(String username) throws GeneralSecurityException, IOException {
+        String cache = System.getProperty("perf.keyCache");
+        Path file = cache != null ? Paths.get(cache, username + ".key") : null;
+        KeyFactory factory = KeyFactory.getInstance("RSA");
+        if (file != null && Files.exists(file)) {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+            if (lines.size() == 2) {
+                return new KeyPair(factory.generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(lines.get(0)))),
+                        factory.generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(lines.get(1)))));
+            }
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+        if (file != null) {
+            Files.createDirectories(file.getParent());
+            Files.write(file, List.of(Base64.getEncoder().encodeToString(keys.getPublic().getEncoded()),
+                    Base64.getEncoder().encodeToString(keys.getPrivate().getEncoded())), StandardCharsets.US_ASCII);
+        }
+        return keys;
+    }
+
+    private static String provider() {
+        return JsonbProvider.provider().getClass().getName();
+    }
+
+    private static long allocated() {
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+
+    private boolean check() throws IOException {
+        Properties budgets = new Properties();
+        try (InputStream in = AllocationBudget.class.getClassLoader().getResourceAsStream(BUDGET_FILE)) {
+            if (in == null) {
+                report.println("Missing " + BUDGET_FILE + " on the classpath");
+                return false;
+            }
+            budgets.load(in);
+        }
+        String recordedWith = budgets.getProperty(PROVIDER_KEY);
+        if (!provider().equals(recordedWith)) {
+            report.println("Budgets were recorded with JSON-B provider " + recordedWith + ", this run uses " + provider()
+                    + ". Re-record the budgets with the provider the server ships with.");
+            return false;
+        }
+        boolean ok = true;
+        report.printf("%-28s %12s %12s%n", "measurement", "bytes", "budget");
+        for (Map.Entry<String, Long> entry : measured.entrySet()) {
+            String budget = budgets.getProperty(entry.getKey());
+            boolean over = budget != null && entry.getValue() > Long.parseLong(budget.trim());
+            report.printf("%-28s %12d %12s%s%n", entry.getKey(), entry.getValue(),
+                    budget != null ? budget.trim() : "-", over ? "  OVER BUDGET" : "");
+            ok &= !over;
+        }
+        if (!ok) {
+            report.println("Allocation budget exceeded. If the increase is intended, re-record the budgets.");
+        }
+        return ok;
+    }
+
+    private void record(Path file) throws IOException {
+        StringBuilder out = new StringBuilder()
+                .append("# Bytes allocated on the handling thread, measured by perf.AllocationBudget\n")
+                .append("# with ").append((int) Math.round((RECORD_HEADROOM - 1) * 100)).append("% headroom, at least 64 bytes.")
+                .append(" Re-record with: gradle recordAllocationBudgets\n")
+                .append(PROVIDER_KEY).append('=').append(provider()).append('\n');
+        for (Map.Entry<String, Long> entry : measured.entrySet()) {
+            // At least 64 bytes on top, so a small measurement does not end up with a budget of itself
+            double headroom = Math.max(entry.getValue() * RECORD_HEADROOM, entry.getValue() + 64);
+            long budget = (long) Math.ceil(headroom / 64.0) * 64;
+            out.append(entry.getKey()).append('=').append(budget).append('\n');
+            report.println(entry.getKey() + ": " + entry.getValue() + " -> budget " + budget);
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(file, out.toString().getBytes(StandardCharsets.UTF_8));
+        report.println("Budgets written to " + file);
+    }
+
+    /**
+     * One fake connection with its endpoint instance and the user's key pair.
+     */
+    private static final class Client {
+        private final FakeSession fake;
+        private final ChatWebSocket endpoint;
+        private String username;
+        private KeyPair keys;
+
+        private Client(FakeSession fake, ChatWebSocket endpoint) {
+            this.fake = fake;
+            this.endpoint = endpoint;
+        }
+
+        // Signs the last challenge the way the client does: SHA-256 of the challenge bytes, raw RSA
+        private String sign() {
+            String challenge = fake.getLastText().substring("challenge:".length());
+            byte[] bytes = new byte[challenge.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) ((Character.digit(challenge.charAt(2 * i), 16) << 4) + Character.digit(challenge.charAt(2 * i + 1), 16));
+            }
+            try {
+                BigInteger hash = new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(bytes));
+                RSAPrivateKey key = (RSAPrivateKey) keys.getPrivate();
+                return hash.modPow(key.getPrivateExponent(), key.getModulus()).toString(16);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package perf;
+
+import utils.BroadcastEngine;
+import utils.SessionState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time-to-last-delivery of one broadcast frame at large session counts,
+ * comparing a sequential send loop on the caller's thread with the sharded
+ * BroadcastEngine. Fake sessions complete writes inline, so a frame counts as
+ * delivered once it was handed to the session's queue.
+ *
+ * Usage: BroadcastBenchmark [session counts, default 10000,50000]
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class BroadcastBenchmark {
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+    private static final String FRAME = "{\"seq\":1,\"cseq\":1,\"content\":\"Server maintenance starts in ten minutes.\","
+            + "\"timestamp\":1700000000000,\"sender\":\"announcements\"}";
+
+    public static void main(String[] args) {
+        String counts = args.length > 0 ? args[0] : "10000,50000";
+        System.out.printf("%10s %-12s %10s %10s %10s%n", "sessions", "mode", "p50 ms", "p95 ms", "max ms");
+        for (String count : counts.split(",")) {
+            run(Integer.parseInt(count.trim()));
+        }
+    }
+
+    private static void run(int sessionCount) {
+        List<SessionState> states = new ArrayList<>(sessionCount);
+        for (int i = 0; i < sessionCount; i++) {
+            SessionState state = SessionState.attach(new FakeSession("bench-" + i).getSession());
+            BroadcastEngine.register(state);
+            states.add(state);
+        }
+
+        report(sessionCount, "sequential", measure(() -> {
+            for (SessionState state : states) {
+                if (state.getSession().isOpen()) {
+                    state.send(FRAME);
+                }
+            }
+        }));
+        report(sessionCount, "sharded", measure(() -> BroadcastEngine.broadcast(FRAME).join()));
+
+        for (SessionState state : states) {
+            BroadcastEngine.unregister(state);
+        }
+    }
+
+    private static long[] measure(Runnable broadcast) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            broadcast.run();
+        }
+        long[] nanos = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            broadcast.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    private static void report(int sessionCount, String mode, long[] sorted) {
+        System.out.printf("%10d %-12s %10.2f %10.2f %10.2f%n", sessionCount, mode,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) Math.ceil(sorted.length * 0.95) - 1] / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+}
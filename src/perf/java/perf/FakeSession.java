@@ -0,0 +1,108 @@
+package perf;
+
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory WebSocket session for the perf harnesses. Writes complete inline
+ * and only the last text frame is kept, so the fake itself allocates next to
+ * nothing per frame besides the proxy's argument array.
+ * @author Max Staneker, Mia Schienagel
+ * @version 0.1
+ */
+public class FakeSession implements InvocationHandler {
+    private final String id;
+    private final Map<String, Object> userProperties = new HashMap<>();
+    private final Session session;
+    private final RemoteEndpoint.Async async;
+    private final SendResult ok;
+    private volatile boolean open = true;
+    private volatile String lastText;
+    private long framesSent;
+
+    public FakeSession(String id) {
+        this.id = id;
+        this.session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class}, this);
+        this.async = (RemoteEndpoint.Async) Proxy.newProxyInstance(RemoteEndpoint.Async.class.getClassLoader(),
+                new Class<?>[]{RemoteEndpoint.Async.class}, this::invokeAsync);
+        this.ok = new SendResult(session);
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return the last text frame written to this session
+     */
+    public String getLastText() {
+        return lastText;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getId":
+                return id;
+            case "isOpen":
+                return open;
+            case "getUserProperties":
+                return userProperties;
+            case "getAsyncRemote":
+                return async;
+            case "close":
+                open = false;
+                return null;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "FakeSession[" + id + "]";
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private Object invokeAsync(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ((name.equals("sendText") || name.equals("sendBinary")) && args.length == 2 && args[1] instanceof SendHandler) {
+            if (args[0] instanceof String) {
+                lastText = (String) args[0];
+            }
+            framesSent++;
+            ((SendHandler) args[1]).onResult(ok);
+            return null;
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}